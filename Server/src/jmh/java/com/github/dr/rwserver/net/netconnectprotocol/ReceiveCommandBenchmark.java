@@ -0,0 +1,111 @@
+package com.github.dr.rwserver.net.netconnectprotocol;
+
+import com.github.dr.rwserver.io.Packet;
+import com.github.dr.rwserver.util.PacketType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * receiveCommand: 原地改写 sharedControl 的快速路径 与 完整解码后重新编码 对比
+ * 每个命令的分配量看 -prof gc 的 gc.alloc.rate.norm (B/op)
+ * gradlew :Server:jmh -PjmhArgs="ReceiveCommandBenchmark -prof gc"
+ * @author Dr
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ReceiveCommandBenchmark {
+    private static final short SHARED_CONTROL = 0x0F;
+
+    /** 命令中选中的单位数 */
+    @Param({"1", "20"})
+    public int units;
+
+    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    private ByteBuf buf;
+    private Packet packet;
+
+    @Setup
+    public void setup() throws IOException {
+        final byte[] bytes = encodePacket(units);
+        buf = Unpooled.wrappedBuffer(bytes);
+        packet = new Packet(PacketType.PACKET_ADD_GAMECOMMAND, bytes);
+        if (GameVersionServer.patchSharedControl(buf, SHARED_CONTROL) == null) {
+            throw new IllegalStateException("Fast path rejected the command layout");
+        }
+    }
+
+    @Benchmark
+    public byte[] patchSharedControl() {
+        return GameVersionServer.patchSharedControl(buf, SHARED_CONTROL);
+    }
+
+    @Benchmark
+    public byte[] reEncodeCommand() throws IOException {
+        return GameVersionServer.reEncodeCommand(packet, allocator, SHARED_CONTROL);
+    }
+
+    /**
+     * 按 reEncodeCommand 读取的布局构造一个带全部可选字段的命令包
+     */
+    private static byte[] encodePacket(final int units) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        final DataOutputStream o = new DataOutputStream(body);
+        o.writeByte(0);
+        o.writeBoolean(true);
+        o.writeInt(1);
+        o.writeInt(-2);
+        o.writeUTF("tank");
+        o.write(new byte[28]);
+        o.writeBoolean(true);
+        o.writeUTF("action");
+        o.write(new byte[10]);
+        o.writeBoolean(true);
+        o.write(new byte[8]);
+        o.writeBoolean(false);
+        o.writeInt(units);
+        for (int i = 0; i < units; i++) {
+            o.writeLong(i);
+        }
+        o.writeBoolean(true);
+        o.writeByte(1);
+        o.writeBoolean(true);
+        o.write(new byte[8]);
+        o.writeLong(0);
+        o.writeUTF("-1");
+        o.writeBoolean(false);
+        o.writeShort(0);
+        /* 之后的数据原样复制 */
+        o.write(new byte[16]);
+        o.flush();
+
+        final ByteArrayOutputStream packet = new ByteArrayOutputStream(body.size() + 16);
+        final DataOutputStream stream = new DataOutputStream(packet);
+        stream.writeUTF("c");
+        stream.writeInt(body.size());
+        body.writeTo(stream);
+        stream.flush();
+        return packet.toByteArray();
+    }
+}
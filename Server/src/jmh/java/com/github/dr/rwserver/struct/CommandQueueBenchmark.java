@@ -0,0 +1,108 @@
+package com.github.dr.rwserver.struct;
+
+import com.github.dr.rwserver.game.GameCommand;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rules.gameCommandCache: {@link MpscRing} 与原 LinkedBlockingQueue 对比
+ * 每次调用 producers 个线程 (连接的读线程) 共入队 COMMANDS 个命令 基准线程 (Tick线程) 批量出队直到全部取出
+ * Ring 的容量不小于 COMMANDS 只比较入队/出队本身 (队满丢弃不计入)
+ * gradlew :Server:jmh -PjmhArgs="CommandQueueBenchmark -prof gc"
+ * @author Dr
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandQueueBenchmark {
+    private static final int COMMANDS = 10_000;
+
+    @Param({"10", "50", "100"})
+    public int producers;
+
+    private final GameCommand command = new GameCommand(0, new byte[64]);
+    private ExecutorService pool;
+    private MpscRing<GameCommand> ring;
+    private LinkedBlockingQueue<GameCommand> queue;
+    /** Tick线程复用的 Seq (与 Call.SendGameTickCommand 相同) */
+    private final Seq<GameCommand> comm = new Seq<>(64);
+
+    @Setup
+    public void setup() {
+        pool = Executors.newFixedThreadPool(producers);
+        ring = new MpscRing<>(Integer.highestOneBit(COMMANDS - 1) << 1);
+        queue = new LinkedBlockingQueue<>();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public void mpscRing(Blackhole blackhole) throws InterruptedException {
+        final CountDownLatch done = produce(() -> ring.offer(command));
+        int received = 0;
+        while (received < COMMANDS) {
+            received += ring.drain(comm);
+            blackhole.consume(comm);
+        }
+        done.await();
+    }
+
+    /**
+     * 原实现: 取 size() 后逐个 poll 到新的 Seq
+     */
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public void linkedBlockingQueue(Blackhole blackhole) throws InterruptedException {
+        final CountDownLatch done = produce(() -> queue.offer(command));
+        int received = 0;
+        while (received < COMMANDS) {
+            final int size = queue.size();
+            final Seq<GameCommand> comm = new Seq<>(size);
+            for (int i = 0; i < size; i++) {
+                comm.add(queue.poll());
+            }
+            received += size;
+            blackhole.consume(comm);
+        }
+        done.await();
+    }
+
+    private CountDownLatch produce(final Runnable offer) {
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            final int count = COMMANDS / producers + (p < COMMANDS % producers ? 1 : 0);
+            pool.execute(() -> {
+                for (int i = 0; i < count; i++) {
+                    offer.run();
+                }
+                done.countDown();
+            });
+        }
+        return done;
+    }
+}
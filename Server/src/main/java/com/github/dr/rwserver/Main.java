@@ -6,11 +6,13 @@ import com.github.dr.rwserver.command.ServerCommands;
 import com.github.dr.rwserver.core.Core;
 import com.github.dr.rwserver.core.Initialization;
 import com.github.dr.rwserver.core.ex.Event;
+import com.github.dr.rwserver.core.ex.SaveScheduler;
 import com.github.dr.rwserver.core.ex.Threads;
 import com.github.dr.rwserver.data.global.Data;
 import com.github.dr.rwserver.data.plugin.PluginManage;
 import com.github.dr.rwserver.func.StrCons;
 import com.github.dr.rwserver.game.EventType;
+import com.github.dr.rwserver.game.MapCache;
 import com.github.dr.rwserver.net.Administration;
 import com.github.dr.rwserver.net.netconnectprotocol.GameVersionPacket;
 import com.github.dr.rwserver.struct.Seq;
@@ -21,6 +23,7 @@ import com.github.dr.rwserver.util.file.LoadConfig;
 import com.github.dr.rwserver.util.game.CommandHandler;
 import com.github.dr.rwserver.util.game.Events;
 import com.github.dr.rwserver.util.log.Log;
+import com.github.dr.rwserver.util.zip.gzip.ZlibPool;
 
 import java.io.DataOutputStream;
 import java.io.InputStreamReader;
@@ -59,6 +62,9 @@ public class Main {
 		Data.core.load();
 
 		Data.config = new LoadConfig(Data.Plugin_Data_Path,"Config.json");
+		ZlibPool.configure(Data.config.readInt("gzipLevel",-1),Data.config.readInt("zlibPoolSize",16));
+		MapCache.configure(Data.config.readInt("mapCacheSize",64));
+		SaveScheduler.start(Data.config.readInt("saveInterval",60),Data.config.readInt("saveBurst",32),Data.core.settings::save);
 
 		/* 命令加载 */
 		new ServerCommands(Data.SERVERCOMMAND);
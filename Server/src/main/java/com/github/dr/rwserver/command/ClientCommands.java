@@ -8,6 +8,7 @@ import com.github.dr.rwserver.data.Player;
 import com.github.dr.rwserver.data.global.Data;
 import com.github.dr.rwserver.game.EventType;
 import com.github.dr.rwserver.game.GameMaps;
+import com.github.dr.rwserver.game.ReplayPlayback;
 import com.github.dr.rwserver.game.Team;
 import com.github.dr.rwserver.struct.IntSet;
 import com.github.dr.rwserver.util.LocaleUtil;
@@ -187,6 +188,33 @@ public class ClientCommands {
 
 		handler.<Player>register("status", "clientCommands.status", (args, player) -> player.sendSystemMessage(player.localeUtil.getinput("status.version",Data.playerGroup.size(),Data.core.admin.bannedIPs.size(),Data.SERVER_CORE_VERSION)));
 
+		handler.<Player>register("replay", "<speed/seek> <value>", "clientCommands.replay", (args, player) -> {
+			final ReplayPlayback.Feed feed = player.replayFeed;
+			if (feed == null) {
+				player.sendSystemMessage(player.localeUtil.getinput("err.noReplay"));
+				return;
+			}
+			switch (args[0]) {
+				case "speed":
+					if (notIsDecimal(args[1])) {
+						player.sendSystemMessage(player.localeUtil.getinput("err.noNumber"));
+						return;
+					}
+					feed.setSpeed(Float.parseFloat(args[1]));
+					break;
+				case "seek":
+					if (notIsNumeric(args[1]) || args[1].length() > 9) {
+						player.sendSystemMessage(player.localeUtil.getinput("err.noNumber"));
+						return;
+					}
+					feed.seek(Integer.parseInt(args[1]));
+					break;
+				default:
+					return;
+			}
+			player.sendSystemMessage("Tick: " + feed.getPosition() + " / " + Data.game.replayPlayback.getTickCount());
+		});
+
 		handler.<Player>register("kick", "<PlayerSerialNumber>", "clientCommands.kick", (args, player) -> {
 			if (Data.game.isStartGame) {
 				player.sendSystemMessage(player.localeUtil.getinput("err.startGame"));
@@ -4,11 +4,13 @@ import com.github.dr.rwserver.Main;
 import com.github.dr.rwserver.core.Call;
 import com.github.dr.rwserver.core.Core;
 import com.github.dr.rwserver.core.NetServer;
+import com.github.dr.rwserver.core.ex.SaveScheduler;
 import com.github.dr.rwserver.core.ex.Threads;
 import com.github.dr.rwserver.data.Player;
 import com.github.dr.rwserver.data.global.Data;
 import com.github.dr.rwserver.func.StrCons;
 import com.github.dr.rwserver.game.EventType;
+import com.github.dr.rwserver.game.MapCache;
 import com.github.dr.rwserver.game.Rules;
 import com.github.dr.rwserver.net.Net;
 import com.github.dr.rwserver.util.LocaleUtil;
@@ -16,6 +18,7 @@ import com.github.dr.rwserver.util.Time;
 import com.github.dr.rwserver.util.game.CommandHandler;
 import com.github.dr.rwserver.util.game.Events;
 import com.github.dr.rwserver.util.log.Log;
+import com.github.dr.rwserver.util.zip.gzip.ZlibPool;
 
 import java.io.IOException;
 import java.util.concurrent.TimeUnit;
@@ -52,6 +55,7 @@ public class ServerCommands {
             Data.game.init();
             Data.game.team = Threads.newThreadService2(Call::sendTeamData,0,2, TimeUnit.SECONDS);
             Data.game.ping = Threads.newThreadService2(Call::sendPlayerPing,0,2, TimeUnit.SECONDS);
+            Data.game.journal.recover();
             Threads.newThreadCore(() -> {
                 Data.game.natStartGame = new Net.NetStartGame();
                 Data.game.natStartGame.startGame(Data.game.port, Data.game.passwd);
@@ -88,7 +92,15 @@ public class ServerCommands {
         });
 
         handler.<StrCons>register("clearbanip", "serverCommands.clearbanip", (arg, log) -> {
-            Data.core.admin.bannedIPs.clear();
+            Data.core.admin.clearBanIp();
+        });
+
+        handler.<StrCons>register("unbanip", "<IP>", "serverCommands.unbanip", (arg, log) -> {
+            if (Data.core.admin.unBanIp(arg[0])) {
+                log.get(localeUtil.getinput("serverCommands.unbanip.ok", arg[0]));
+            } else {
+                log.get(localeUtil.getinput("serverCommands.unbanip.no", arg[0]));
+            }
         });
 
         handler.<StrCons>register("admin", "<add/remove> <PlayerSite>", "serverCommands.admin", (arg, log) -> {
@@ -124,12 +136,12 @@ public class ServerCommands {
         });
 
         handler.<StrCons>register("clearbanuuid", "serverCommands.clearbanuuid", (arg, log) -> {
-            Data.core.admin.bannedUUIDs.clear();
+            Data.core.admin.clearBanUuid();
         });
 
         handler.<StrCons>register("clearbanall", "serverCommands.clearbanall", (arg, log) -> {
-            Data.core.admin.bannedIPs.clear();
-            Data.core.admin.bannedUUIDs.clear();
+            Data.core.admin.clearBanIp();
+            Data.core.admin.clearBanUuid();
         });
 
         handler.<StrCons>register("ban", "<PlayerSerialNumber>", "serverCommands.ban", (arg, log) -> {
@@ -189,12 +201,42 @@ public class ServerCommands {
                         .append(" / ")
                         .append("Protocol: ").append(player.con.getProtocol())
                         .append(" / ")
+                        .append("Backlog: ").append(player.con.getOutboundBacklog() / 1024).append("KB")
+                        .append(" / ")
                         .append("Admin: ").append(player.isAdmin);
                 }
                 log.get(data.toString());
             }
         });
 
+        handler.<StrCons>register("netstats", "[reset]", "serverCommands.netstats", (arg, log) -> {
+            if (arg.length > 0 && "reset".equals(arg[0])) {
+                Data.core.admin.getPacketDispatcher().resetStats();
+                Data.core.admin.getFloodControl().resetStats();
+                if (Data.game.gameTask != null) {
+                    Data.game.gameTask.resetStats();
+                }
+                Data.game.gameCommandCache.resetOverflow();
+                Data.game.teamData.resetStats();
+                return;
+            }
+            log.get(Data.core.admin.getPacketDispatcher().getStats());
+            log.get(Data.core.admin.getFloodControl().getStats());
+            if (Data.game.gameTask != null) {
+                log.get(Data.game.gameTask.getStats());
+            }
+            log.get("GameCommand: " + Data.game.gameCommandCache.size() + " / " + Data.game.gameCommandCache.capacity() +
+                    " / Overflow: " + Data.game.gameCommandCache.getOverflow());
+            log.get(Data.game.teamData.getStats());
+            log.get(ZlibPool.getStats());
+            log.get(MapCache.getStats());
+            log.get(SaveScheduler.getStats());
+            log.get("GameSave Age(ms): " + Data.game.gameSave.getAge());
+            if (Data.game.replayPlayback != null) {
+                log.get(Data.game.replayPlayback.getStats());
+            }
+        });
+
         handler.<StrCons>register("kill", "<PlayerSerialNumber>", "serverCommands.kill", (arg, log) -> {
             if (Data.game.isStartGame) {
                 int site = Integer.parseInt(arg[0])-1;
@@ -221,13 +263,14 @@ public class ServerCommands {
         });
 
         handler.<StrCons>register("cleanmods", "serverCommands.cleanmods", (arg, log) -> {
-            Data.core.unitBase64.clear();
+            Data.core.clearUnitBase64();
             Data.core.save();
             Main.loadNetCore();
         });
 
         handler.<StrCons>register("reloadmaps", "serverCommands.upserverlist", (arg, log) -> {
             Data.game.mapsData.clear();
+            MapCache.clear();
             Data.game.checkMaps();
         });
 
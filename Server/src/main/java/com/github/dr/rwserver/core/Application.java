@@ -1,5 +1,6 @@
 package com.github.dr.rwserver.core;
 
+import com.github.dr.rwserver.core.ex.SaveScheduler;
 import com.github.dr.rwserver.core.ex.Threads;
 import com.github.dr.rwserver.data.plugin.PluginData;
 import com.github.dr.rwserver.net.Administration;
@@ -23,6 +24,8 @@ public final class Application {
     public Seq<String> unitBase64;
     public Administration admin;
     public boolean upServerList = false;
+    /** 修改 unitBase64 后标记 (见 {@link #clearUnitBase64()}) */
+    private SaveScheduler.Saver saver;
 
     public String serverName = "RW-HPS";
     public float defIncome = 1f;
@@ -37,12 +40,24 @@ public final class Application {
         serverConnectUuid = settings.getData("serverConnectUuid", UUID.randomUUID().toString());
         unitBase64 = castSeq(settings.getData("unitBase64", new Seq()),String.class);
 
-        Threads.addSavePool(() -> {
+        saver = Threads.addSavePool(() -> {
+            final Seq<String> units;
+            synchronized (this) {
+                units = new Seq<>(unitBase64);
+            }
             settings.put("serverConnectUuid",serverConnectUuid);
-            settings.putObject("unitBase64",unitBase64);
+            settings.putObject("unitBase64",units);
         });
     }
 
+    /**
+     * 清空读取的Mod 与后台保存的复制同一把锁
+     */
+    public synchronized void clearUnitBase64() {
+        unitBase64.clear();
+        saver.markDirty();
+    }
+
     public void save() {
         Threads.runSavePool();
         settings.save();
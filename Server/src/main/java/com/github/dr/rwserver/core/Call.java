@@ -1,22 +1,29 @@
 package com.github.dr.rwserver.core;
 
 import com.github.dr.rwserver.core.ex.Threads;
+import com.github.dr.rwserver.core.ex.TickEngine;
 import com.github.dr.rwserver.data.Player;
 import com.github.dr.rwserver.data.global.Data;
 import com.github.dr.rwserver.data.global.Static;
 import com.github.dr.rwserver.game.EventType;
+import com.github.dr.rwserver.func.Boolf;
 import com.github.dr.rwserver.game.GameCommand;
+import com.github.dr.rwserver.game.TeamDataCache;
 import com.github.dr.rwserver.net.AbstractNetPacket;
+import com.github.dr.rwserver.net.GroupNet;
 import com.github.dr.rwserver.struct.Seq;
+import com.github.dr.rwserver.util.LocaleUtil;
 import com.github.dr.rwserver.util.game.Events;
 import com.github.dr.rwserver.util.log.Log;
-import com.github.dr.rwserver.util.zip.gzip.GzipEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCountUtil;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.IntStream;
 
 /**
  * @author Dr
@@ -25,37 +32,102 @@ public class Call {
 
     final static AbstractNetPacket PACKET = Data.game.connectPacket;
 
+    /** 无参数的系统消息 按 语言+Key 缓存已编码的包 (LRU) */
+    private static final int LOCAL_CACHE_SIZE = 64;
+    private static final Map<String, ByteBuf> LOCAL_SYSTEM_CACHE = new LinkedHashMap<String, ByteBuf>(LOCAL_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ByteBuf> eldest) {
+            if (size() > LOCAL_CACHE_SIZE) {
+                ReferenceCountUtil.release(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
 
     public static void sendMessage(Player player, String text) {
         try {
-            Static.groupNet.broadcast(PACKET.getChatMessageByteBuf(text,player.name,player.team));
+            Static.groupNet.broadcastIfWritable(PACKET.getChatMessageByteBuf(text,player.name,player.team));
         } catch (IOException e) {
             Log.error("[ALL] Send Player Chat Error",e);
         }
     }
 
     public static void sendMessageLocal(Player player, String text, Object... obj) {
-        Data.playerGroup.each(e -> e.sendMessage(player,e.localeUtil.getinput(text,obj)));
+        broadcastLocal(e -> true, locale -> PACKET.getChatMessageByteBuf(locale.getinput(text,obj),player.name,player.team));
     }
 
     public static void sendTeamMessage(int team,Player player, String text) {
-        Data.playerGroup.eachs(e -> e.team == team,p -> p.sendMessage(player,"[TEAM] "+text));
+        try {
+            Static.groupNet.broadcastIfWritable(PACKET.getChatMessageByteBuf("[TEAM] "+text,player.name,player.team),GroupNet.team(team));
+        } catch (IOException e) {
+            Log.error("[TEAM] Send Player Chat Error",e);
+        }
     }
 
     public static void sendSystemTeamMessageLocal(int team,String text, Object... obj) {
-        Data.playerGroup.eachs(e -> e.team == team,p -> p.sendSystemMessage("[TEAM] "+p.localeUtil.getinput(text,obj)));
+        broadcastLocal(GroupNet.team(team), locale -> PACKET.getSystemMessageByteBuf("[TEAM] "+locale.getinput(text,obj)));
     }
 
     public static void sendSystemMessage(String text) {
         try {
-            Static.groupNet.broadcast(PACKET.getSystemMessageByteBuf(text));
+            Static.groupNet.broadcastIfWritable(PACKET.getSystemMessageByteBuf(text));
         } catch (IOException e) {
             Log.error("[ALL] Send System Chat Error",e);
         }
     }
 
     public static void sendSystemMessageLocal(String text, Object... obj) {
-        Data.playerGroup.each(e -> e.sendSystemMessage(e.localeUtil.getinput(text,obj)));
+        if (obj.length == 0) {
+            broadcastLocal(e -> true, locale -> getCachedSystemMessage(locale,text));
+        } else {
+            broadcastLocal(e -> true, locale -> PACKET.getSystemMessageByteBuf(locale.getinput(text,obj)));
+        }
+    }
+
+    /**
+     * 按语言分组 每种语言只格式化/编码一次 再群发给该语言的玩家
+     * @param filter 接收的玩家
+     * @param encoder 编码
+     */
+    private static void broadcastLocal(final Boolf<Player> filter, final LocalEncoder encoder) {
+        final Seq<LocaleUtil> locales = new Seq<>(false,4);
+        Data.playerGroup.eachs(filter,p -> {
+            if (!locales.contains(p.localeUtil,true)) {
+                locales.add(p.localeUtil);
+            }
+        });
+        locales.each(locale -> {
+            try {
+                Static.groupNet.broadcastIfWritable(encoder.encode(locale),filter.and(p -> p.localeUtil == locale));
+            } catch (IOException e) {
+                Log.error("[ALL] Send Local Message Error",e);
+            }
+        });
+    }
+
+    private static ByteBuf getCachedSystemMessage(LocaleUtil locale, String text) throws IOException {
+        final String key = locale.getLanguage() + "|" + text;
+        synchronized (LOCAL_SYSTEM_CACHE) {
+            ByteBuf byteBuf = LOCAL_SYSTEM_CACHE.get(key);
+            if (byteBuf == null) {
+                byteBuf = PACKET.getSystemMessageByteBuf(locale.getinput(text));
+                LOCAL_SYSTEM_CACHE.put(key,byteBuf);
+            }
+            /* 群发后释放的是这份引用 缓存本身不受影响 */
+            return byteBuf.retainedDuplicate();
+        }
+    }
+
+    private interface LocalEncoder {
+        /**
+         * 以该语言编码
+         * @param locale 语言
+         * @return 包
+         * @throws IOException Error
+         */
+        ByteBuf encode(LocaleUtil locale) throws IOException;
     }
 
     public static void sendSystemMessage(String text, Object... obj) {
@@ -66,11 +138,28 @@ public class Call {
         if (Data.game.reConnectBreak) {
             return;
         }
-        try {
-            GzipEncoder enc = PACKET.getTeamDataByteBuf();
-            Data.playerGroup.each(e -> e.con.sendTeamData(enc));
-        } catch (IOException e) {
-            Log.error("[ALL] Send Team Error",e);
+        final TeamDataCache cache = Data.game.teamData;
+        /* 状态未变时不重新压缩 已是当前版本的玩家不再发送 */
+        synchronized (cache) {
+            try {
+                final long version = cache.update();
+                ByteBuf teamData = null;
+                for (int i = 0; i < Data.playerGroup.size(); i++) {
+                    final Player player = Data.playerGroup.get(i);
+                    if (player.teamDataVersion == version) {
+                        cache.count(false);
+                        continue;
+                    }
+                    if (teamData == null) {
+                        teamData = cache.getTeamData(PACKET);
+                    }
+                    player.con.sendTeamData(teamData);
+                    player.teamDataVersion = version;
+                    cache.count(true);
+                }
+            } catch (IOException e) {
+                Log.error("[ALL] Send Team Error",e);
+            }
         }
     }
 
@@ -122,7 +211,7 @@ public class Call {
                             start = false;
                             Call.sendSystemMessageLocal("start.testNo");
                         }
-                        Data.game.gameTask = Threads.newThreadService2(new SendGameTickCommand(),0,150, TimeUnit.MILLISECONDS);
+                        startGameTick(150);
                         cancel();
                     }
                 }
@@ -131,15 +220,50 @@ public class Call {
                 start = false;
                 Call.sendSystemMessageLocal("start.testYes");
             }
-            Data.game.gameTask = Threads.newThreadService2(new SendGameTickCommand(),0,200, TimeUnit.MILLISECONDS);
+            startGameTick(200);
             cancel();
         }
     }
 
+    /**
+     * 启动游戏Tick 已有的会先停止
+     * @param period 周期 ms
+     */
+    private static void startGameTick(int period) {
+        startGameTick(period, 0);
+    }
+
+    /**
+     * 启动游戏Tick 已有的会先停止
+     * @param period 周期 ms
+     * @param time 起始Tick (从日志恢复时接着原Tick)
+     */
+    public static synchronized void startGameTick(int period, int time) {
+        if (Data.game.gameTask != null) {
+            Data.game.gameTask.stop();
+        }
+        Data.game.journal.start(period);
+        if (time == 0) {
+            /* 从日志恢复的对局缺少开局 不录像 */
+            Data.game.replay.start(period);
+        }
+        Data.game.gameTask = new TickEngine("Game-Tick", new SendGameTickCommand(time), period, TimeUnit.MILLISECONDS).start();
+    }
+
+    /**
+     * 在Tick线程内直接编码并群发
+     */
     private static class SendGameTickCommand implements Runnable {
-        private int time = 0;
+        /** 每个Tick复用 */
+        private final Seq<GameCommand> comm = new Seq<>(64);
+        private int time;
         private boolean oneSay = true;
         private boolean gameOver = true;
+
+        private SendGameTickCommand(int time) {
+            this.time = time;
+        }
+
         @Override
         public void run() {
             if (Data.game.reConnectBreak) {
@@ -166,34 +290,35 @@ public class Call {
                     gameOver = true;
                 }
             }
-            final int size = Data.game.gameCommandCache.size();
+            final int size = Data.game.gameCommandCache.drain(comm);
+            /* 与 GameSave 请求互斥 请求时记下的Tick即快照包含的最后一个Tick */
+            synchronized (Data.game.journal.tickLock) {
+                Data.game.journal.tick(time, comm);
+                Data.game.replay.tick(time, comm);
+                send(size);
+            }
+        }
+
+        private void send(final int size) {
             if (size == 0) {
-                Threads.newThreadPlayer1(() -> {
-                    try {
-                        Static.groupNet.broadcast(PACKET.getTickByteBuf(time));
-                    } catch (IOException e) {
-                        Log.error("[ALL] Send Tick Failed",e);
-                    }
-                });
+                try {
+                    Static.groupNet.broadcastIfWritable(PACKET.getTickByteBuf(time));
+                } catch (IOException e) {
+                    Log.error("[ALL] Send Tick Failed",e);
+                }
             } else if (size == 1 ) {
-                GameCommand gameCommand = Data.game.gameCommandCache.poll();
-                Threads.newThreadPlayer1(() -> {
-                    try {
-                        Static.groupNet.broadcast(PACKET.getGameTickCommandByteBuf(time,gameCommand));
-                    } catch (IOException e) {
-                        Log.error("[ALL] Send Game Tick Error",e);
-                    }
-                });
+                GameCommand gameCommand = comm.get(0);
+                try {
+                    Static.groupNet.broadcast(PACKET.getGameTickCommandByteBuf(time,gameCommand));
+                } catch (IOException e) {
+                    Log.error("[ALL] Send Game Tick Error",e);
+                }
             } else {
-                Seq<GameCommand> comm = new Seq<>(size);
-                IntStream.range(0, size).mapToObj(i -> Data.game.gameCommandCache.poll()).forEach(comm::add);
-                Threads.newThreadPlayer1(() -> {
-                    try {
-                        Static.groupNet.broadcast(PACKET.getGameTickCommandsByteBuf(time,comm));
-                    } catch (IOException e) {
-                        Log.error("[ALL] Send Game Ticks Error",e);
-                    }
-                });
+                try {
+                    Static.groupNet.broadcast(PACKET.getGameTickCommandsByteBuf(time,comm));
+                } catch (IOException e) {
+                    Log.error("[ALL] Send Game Ticks Error",e);
+                }
             }
         }
     }
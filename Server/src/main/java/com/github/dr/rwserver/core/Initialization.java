@@ -1,5 +1,6 @@
 package com.github.dr.rwserver.core;
 
+import com.github.dr.rwserver.core.ex.SaveScheduler;
 import com.github.dr.rwserver.data.global.Data;
 import com.github.dr.rwserver.util.file.FileUtil;
 import com.github.dr.rwserver.util.log.Log;
@@ -88,13 +89,18 @@ public class Initialization {
 	}
 
 	static class ExitHandler extends Thread {
+		private static final int EXIT_SAVE_TIMEOUT = 5000;
+
 		public ExitHandler() {
 			super("Exit Handler");
 		}
 		@Override
 		public void run() {
-			System.out.println("Exit Save Ok");
-			Data.core.save();
+			if (SaveScheduler.shutdown(Data.config == null ? EXIT_SAVE_TIMEOUT : Data.config.readInt("saveExitTimeout",EXIT_SAVE_TIMEOUT))) {
+				System.out.println("Exit Save Ok");
+			} else {
+				System.out.println("Exit Save Timeout");
+			}
 		}
 	}
 }
@@ -38,7 +38,7 @@ public class NetServer {
 
     public static void reLoadServer() {
         if (Data.game.gameTask != null) {
-            Data.game.gameTask.cancel(true);
+            Data.game.gameTask.stop();
             Data.game.gameTask = null;
         }
         if (Data.game.gameOver != null) {
@@ -49,7 +49,7 @@ public class Event {
         });
 
         Events.on(PlayerJoin.class, e -> {
-            if (Data.core.admin.bannedUUIDs.contains(e.player.uuid)) {
+            if (Data.core.admin.isBannedUuid(e.player.uuid)) {
                 try {
                     e.player.con.sendKick(e.player.localeUtil.getinput("kick.ban"));
                 } catch (IOException ioException) {
@@ -122,8 +122,8 @@ public class Event {
         });
 
         Events.on(PlayerBanEvent.class,e -> {
-            Data.core.admin.bannedUUIDs.add(e.player.uuid);
-            Data.core.admin.bannedIPs.add(e.player.ip);
+            Data.core.admin.banUuid(e.player.uuid);
+            Data.core.admin.banIp(e.player.ip);
             try {
                 e.player.con.sendKick(e.player.localeUtil.getinput("kick.ban"));
             } catch (IOException ioException) {
@@ -135,7 +135,7 @@ public class Event {
         Events.on(PlayerUnbanEvent.class,e -> {});
 
         Events.on(PlayerIpBanEvent.class,e -> {
-            Data.core.admin.bannedIPs.add(e.player.ip);
+            Data.core.admin.banIp(e.player.ip);
             try {
                 e.player.con.sendKick("kick.ban");
             } catch (IOException ioException) {
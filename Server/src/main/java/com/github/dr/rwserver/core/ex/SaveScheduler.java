@@ -0,0 +1,165 @@
+package com.github.dr.rwserver.core.ex;
+
+import com.github.dr.rwserver.struct.Seq;
+import com.github.dr.rwserver.util.log.Log;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 后台保存 ({@link Threads#addSavePool(Runnable)})
+ * 修改数据后调用 {@link Saver#markDirty()} 只运行被标记的 Saver 之后提交 (写入 Setting.log)
+ * 定时保存 或标记次数达到 burst 后立即保存 保存前的多次标记合并为一次
+ * Saver 在后台线程运行 需在修改数据时持有的锁内复制后再写入 (并发修改 Seq 不会抛出异常) 失败的 Saver 重新标记 下次重试
+ * @author Dr
+ */
+public final class SaveScheduler {
+    private static final Seq<Saver> SAVERS = new Seq<>();
+    /** 已排队的立即保存 合并期间的标记 */
+    private static final AtomicBoolean QUEUED = new AtomicBoolean(false);
+    /** 上次保存后的标记次数 */
+    private static final AtomicInteger MARKS = new AtomicInteger();
+
+    private static Runnable commit = null;
+    private static int burst = 0;
+    private static ScheduledFuture task = null;
+
+    private static long flushCount = 0;
+    private static long runCount = 0;
+    private static long coalesced = 0;
+    private static long failCount = 0;
+    private static long lastFlushTime = 0;
+
+    private SaveScheduler() {
+    }
+
+    static synchronized Saver register(final Runnable run) {
+        final Saver saver = new Saver(run);
+        SAVERS.add(saver);
+        return saver;
+    }
+
+    /**
+     * 读取配置后调用 之前只在退出时保存
+     * @param intervalSec 定时保存间隔 (秒) 0为关闭
+     * @param burstSize 标记多少次后立即保存 0为关闭
+     * @param commitRun Saver 运行后调用 (写入文件)
+     */
+    public static synchronized void start(final int intervalSec, final int burstSize, final Runnable commitRun) {
+        commit = commitRun;
+        burst = Math.max(0, burstSize);
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        if (intervalSec > 0) {
+            task = Threads.newThreadService2(() -> flush(false), intervalSec, intervalSec, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 运行 Saver 并提交
+     * @param all 运行全部 Saver (未变化的值 Settings 不会重复写入)
+     */
+    public static synchronized void flush(final boolean all) {
+        QUEUED.set(false);
+        final int marks = MARKS.getAndSet(0);
+        final long start = System.currentTimeMillis();
+        int run = 0;
+        for (Saver saver : SAVERS) {
+            if (!saver.dirty.getAndSet(false) && !all) {
+                continue;
+            }
+            try {
+                saver.run.run();
+                run++;
+            } catch (Exception e) {
+                saver.dirty.set(true);
+                failCount++;
+                Log.error("[Save] Saver Error", e);
+            }
+        }
+        if (run == 0) {
+            return;
+        }
+        if (commit != null) {
+            try {
+                commit.run();
+            } catch (Exception e) {
+                failCount++;
+                Log.error("[Save] Commit Error", e);
+            }
+        }
+        flushCount++;
+        runCount += run;
+        coalesced += Math.max(0, marks - run);
+        lastFlushTime = System.currentTimeMillis() - start;
+    }
+
+    /**
+     * 退出时保存 最多等待 timeout 线程池可能已关闭 使用单独的线程
+     * @param timeout 等待时间 (ms)
+     * @return 是否在时间内完成
+     */
+    public static boolean shutdown(final long timeout) {
+        synchronized (SaveScheduler.class) {
+            if (task != null) {
+                task.cancel(false);
+                task = null;
+            }
+        }
+        final Thread thread = new Thread(() -> flush(true), "Exit Save");
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            thread.join(Math.max(1, timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+
+    public static synchronized String getStats() {
+        int dirty = 0;
+        for (Saver saver : SAVERS) {
+            if (saver.dirty.get()) {
+                dirty++;
+            }
+        }
+        return "Save: " + SAVERS.size() + " saver(s) / Dirty: " + dirty + " / Flush: " + flushCount + " / Run: " + runCount +
+                " / Coalesced: " + coalesced + " / Fail: " + failCount + " / Last(ms): " + lastFlushTime;
+    }
+
+    private static void onMark() {
+        final int marks = MARKS.incrementAndGet();
+        if (burst <= 0 || marks < burst || !QUEUED.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Threads.newThreadService(() -> flush(false), 0, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            /* 正在退出 由退出时的保存处理 */
+            QUEUED.set(false);
+        }
+    }
+
+    public static class Saver {
+        private final Runnable run;
+        private final AtomicBoolean dirty = new AtomicBoolean(false);
+
+        private Saver(Runnable run) {
+            this.run = run;
+        }
+
+        /**
+         * 数据已修改 等待下次保存
+         */
+        public void markDirty() {
+            dirty.set(true);
+            onMark();
+        }
+    }
+}
@@ -1,7 +1,5 @@
 package com.github.dr.rwserver.core.ex;
 
-import com.github.dr.rwserver.struct.Seq;
-
 import java.util.concurrent.*;
 
 /**
@@ -16,8 +14,6 @@ public class Threads {
 	private static final ExecutorService SINGLE_THREAD_EXECUTOR 		= Executors.newSingleThreadExecutor();
 	private static final ExecutorService SINGLE_UDP_THREAD_EXECUTOR 	= Executors.newSingleThreadExecutor();
 
-	private static final Seq<Runnable> SAVE_POOL 						= new Seq<>();
-
 	/*
 	private static ScheduledFuture THREAD_TIME;
 	Player_Thread.shutdown();
@@ -67,12 +63,17 @@ public class Threads {
 		CORE_NET_THREAD.execute(run);
 	}
 
-	public static void addSavePool(Runnable run) {
-		SAVE_POOL.add(run);
+	/**
+	 * 注册保存
+	 * @param run 把数据写入 Settings
+	 * @return 修改数据后调用 {@link SaveScheduler.Saver#markDirty()}
+	 */
+	public static SaveScheduler.Saver addSavePool(Runnable run) {
+		return SaveScheduler.register(run);
 	}
 
 	public static void runSavePool() {
-		SAVE_POOL.each(Runnable::run);
+		SaveScheduler.flush(true);
 	}
 
 }
\ No newline at end of file
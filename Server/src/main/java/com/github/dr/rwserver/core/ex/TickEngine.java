@@ -0,0 +1,153 @@
+package com.github.dr.rwserver.core.ex;
+
+import com.github.dr.rwserver.util.log.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 游戏Tick 独立的高优先级线程
+ * 以 System.nanoTime() 的绝对时间排程 (下一次 = 上一次目标 + 周期) 不累积漂移
+ * 落后超过一个周期时跳过错过的Tick 不连发追赶
+ * @author Dr
+ */
+public class TickEngine implements Runnable {
+    /** stop 等待当前Tick结束的上限 (ms) */
+    private static final long STOP_TIMEOUT = 5000;
+
+    private final Runnable task;
+    private final long periodNanos;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /* 仅Tick线程写入 */
+    private volatile long ticks = 0;
+    private volatile long skipped = 0;
+    private volatile long overruns = 0;
+    private volatile long jitterTotalNanos = 0;
+    private volatile long jitterMaxNanos = 0;
+    private volatile long costMaxNanos = 0;
+
+    public TickEngine(String name, Runnable task, long period, TimeUnit unit) {
+        this.task = task;
+        this.periodNanos = unit.toNanos(period);
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.setPriority(Thread.MAX_PRIORITY);
+    }
+
+    public TickEngine start() {
+        thread.start();
+        return this;
+    }
+
+    /**
+     * 停止 当前Tick执行完后退出
+     * 其他线程调用时等待Tick线程退出 之后可安全地操作只由Tick线程消费的数据 (如 gameCommandCache)
+     */
+    public void stop() {
+        running = false;
+        if (Thread.currentThread() == thread) {
+            return;
+        }
+        thread.interrupt();
+        final long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+        boolean interrupted = false;
+        long wait;
+        while (thread.isAlive() && (wait = deadline - System.currentTimeMillis()) > 0) {
+            try {
+                thread.join(wait);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            Log.error("[Tick] Stop timeout: " + thread.getName());
+        }
+    }
+
+    /**
+     * 兼容 gameTask 原为 ScheduledFuture 时的调用 (Data.game.gameTask.cancel(...))
+     * @param mayInterruptIfRunning 忽略 总是中断等待
+     * @return 已停止时为 false
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!running) {
+            return false;
+        }
+        stop();
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return !running;
+    }
+
+    @Override
+    public void run() {
+        long next = System.nanoTime();
+        while (running) {
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+                if (!running) {
+                    return;
+                }
+            }
+            final long start = System.nanoTime();
+            final long jitter = start - next;
+            try {
+                task.run();
+            } catch (Throwable e) {
+                Log.error("[Tick] Error", e);
+            }
+            final long end = System.nanoTime();
+            final long cost = end - start;
+
+            ticks++;
+            jitterTotalNanos += jitter;
+            if (jitter > jitterMaxNanos) {
+                jitterMaxNanos = jitter;
+            }
+            if (cost > costMaxNanos) {
+                costMaxNanos = cost;
+            }
+            if (cost > periodNanos) {
+                overruns++;
+            }
+
+            next += periodNanos;
+            final long behind = end - next;
+            if (behind > periodNanos) {
+                final long skip = behind / periodNanos;
+                skipped += skip;
+                next += skip * periodNanos;
+            }
+        }
+    }
+
+    public void resetStats() {
+        ticks = 0;
+        skipped = 0;
+        overruns = 0;
+        jitterTotalNanos = 0;
+        jitterMaxNanos = 0;
+        costMaxNanos = 0;
+    }
+
+    /**
+     * @return Tick / Skip / Overrun / 平均与最大抖动 / 最大耗时
+     */
+    public String getStats() {
+        final long t = ticks;
+        return "Tick: " + t +
+                " / Skip: " + skipped +
+                " / Overrun: " + overruns +
+                " / Jitter(us) avg: " + (t == 0 ? 0 : jitterTotalNanos / t / 1000L) +
+                " max: " + jitterMaxNanos / 1000L +
+                " / Cost(us) max: " + costMaxNanos / 1000L;
+    }
+}
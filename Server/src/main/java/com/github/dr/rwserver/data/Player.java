@@ -1,13 +1,17 @@
 package com.github.dr.rwserver.data;
 
 import com.github.dr.rwserver.data.global.Data;
+import com.github.dr.rwserver.game.ReplayPlayback;
 import com.github.dr.rwserver.game.Team;
+import com.github.dr.rwserver.io.EncodedString;
 import com.github.dr.rwserver.net.AbstractNetConnect;
 import com.github.dr.rwserver.net.AbstractNetPacket;
+import com.github.dr.rwserver.struct.IntSeq;
 import com.github.dr.rwserver.util.LocaleUtil;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UTFDataFormatException;
 import java.util.Objects;
 
 /**
@@ -52,8 +56,16 @@ public final class Player {
 
 	public boolean noSay = false;
 	public boolean watch = false;
+	/** 已收到的队伍列表版本 -1 为未收到 (新连接/重连) */
+	public volatile long teamDataVersion = -1;
+	/** 回放观众的播放进度 非回放模式为 null */
+	public volatile ReplayPlayback.Feed replayFeed = null;
+	/** 已请求未收到的 GameSave 请求时已群发的Tick (按请求顺序) 作为检查点的Tick */
+	public final IntSeq gameSaveTicks = new IntSeq(4);
 
 	private final AbstractNetPacket PACKET = Data.game.connectPacket;
+	/** name 的编码缓存 (name 不可变) 队伍列表循环中不再编码 */
+	private volatile EncodedString encodedName = null;
 
 	public Player(AbstractNetConnect con, final String ip, final String uuid, final String name, final LocaleUtil localeUtil) {
 		this.con = con;
@@ -70,7 +82,7 @@ public final class Player {
 				player.isAdmin = true;
 			}
 		} else {
-			if (Data.core.admin.playerData.contains(player.uuid)) {
+			if (Data.core.admin.isAdmin(player.uuid)) {
 				player.isAdmin = true;
 			}
 		}
@@ -92,6 +104,15 @@ public final class Player {
 		con = null;
 	}
 
+	public final EncodedString getEncodedName() throws UTFDataFormatException {
+		EncodedString result = encodedName;
+		if (result == null) {
+			result = EncodedString.of(name);
+			encodedName = result;
+		}
+		return result;
+	}
+
 	public final void writePlayer(DataOutputStream stream) throws IOException {
 		if (Data.game.isStartGame) {
 			stream.writeByte(site);
@@ -104,7 +125,7 @@ public final class Player {
 		stream.writeInt(credits);
 		stream.writeInt(team);
 		stream.writeBoolean(true);
-		stream.writeUTF(name);
+		getEncodedName().writeTo(stream);
 
 		stream.writeBoolean(false);
 
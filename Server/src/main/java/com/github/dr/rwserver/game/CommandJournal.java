@@ -0,0 +1,559 @@
+package com.github.dr.rwserver.game;
+
+import com.github.dr.rwserver.core.Call;
+import com.github.dr.rwserver.core.ex.Threads;
+import com.github.dr.rwserver.data.Player;
+import com.github.dr.rwserver.data.global.Data;
+import com.github.dr.rwserver.data.global.Static;
+import com.github.dr.rwserver.io.Packet;
+import com.github.dr.rwserver.struct.MpscRing;
+import com.github.dr.rwserver.struct.Seq;
+import com.github.dr.rwserver.util.LocaleUtil;
+import com.github.dr.rwserver.util.file.FileUtil;
+import com.github.dr.rwserver.util.file.LoadConfig;
+import com.github.dr.rwserver.util.log.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 按键包日志 进程崩溃后可恢复对局
+ * 每个Tick及其广播的 GameCommand 追加写入 Tick线程只入队 由后台任务批量写入 FileChannel 后 force (组提交)
+ * 定期向玩家获取 GameSave 作为检查点 重启后从最后一个检查点恢复 等待玩家重连后重放其后的按键包
+ * 检查点的Tick为请求 GameSave 时已群发的Tick (请求与Tick群发互斥) 而不是收到时的Tick
+ * 记录: int 长度 | int CRC32 | byte 类型 | 数据  尾部不完整或校验失败的记录视为崩溃时未写完 丢弃
+ * @author Dr
+ */
+public class CommandJournal {
+    private static final byte START = 1;
+    private static final byte TICK = 2;
+    private static final byte CHECKPOINT = 3;
+    /** 日志已失效 (队列溢出) 恢复时忽略之前的记录 */
+    private static final byte INVALID = 4;
+    private static final int HEAD_SIZE = 8;
+
+    private final boolean enabled;
+    private final int flushPeriod;
+    private final int checkpointPeriod;
+    private final File file;
+    private final MpscRing<byte[]> queue;
+    /** 仅写入任务使用 */
+    private final Seq<byte[]> batch = new Seq<>(64);
+    private final CRC32 crc = new CRC32();
+    /** Tick 的记录与群发 和 GameSave 请求互斥 */
+    public final Object tickLock = new Object();
+
+    private FileChannel channel = null;
+    private ScheduledFuture flushTask = null;
+    private ScheduledFuture checkpointTask = null;
+    private volatile boolean running = false;
+    private volatile int lastTick = 0;
+
+    /* 恢复的对局 等待第一个玩家重连 */
+    private Seq<GameCommandTick> replay = null;
+    private int replayPeriod = 0;
+    private int replayTick = 0;
+    /** 日志中完整记录的长度 续写前截断尾部残缺的记录 */
+    private long validLength = 0;
+
+    public CommandJournal(LoadConfig config) {
+        enabled = config.readBoolean("journal",false);
+        flushPeriod = Math.max(10, config.readInt("journalFlush",100));
+        checkpointPeriod = config.readInt("journalCheckpoint",300);
+        queue = new MpscRing<>(config.readInt("journalCapacity",4096));
+        file = FileUtil.File(Data.Plugin_Save_Path).toPath("game.journal").getFile();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 游戏开始 新建日志并写入开局信息
+     * @param period Tick 周期
+     */
+    public synchronized void start(int period) {
+        if (!enabled || running) {
+            return;
+        }
+        try {
+            open(false);
+            writeNow(encodeStart(period));
+            startTask();
+        } catch (IOException e) {
+            Log.error("[Journal] Start Error", e);
+            close();
+        }
+    }
+
+    /**
+     * Tick线程调用 只入队
+     * @param tick Tick
+     * @param cmd 本Tick广播的按键包
+     */
+    public void tick(int tick, Seq<GameCommand> cmd) {
+        lastTick = tick;
+        if (!running) {
+            return;
+        }
+        int size = 1 + 4 + 4;
+        for (int i = 0; i < cmd.size(); i++) {
+            size += 4 + 4 + cmd.get(i).arr.length;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(HEAD_SIZE + size);
+        buffer.putInt(size).putInt(0).put(TICK).putInt(tick).putInt(cmd.size());
+        for (int i = 0; i < cmd.size(); i++) {
+            final GameCommand c = cmd.get(i);
+            buffer.putInt(c.sendBy).putInt(c.arr.length).put(c.arr);
+        }
+        offer(buffer.array());
+    }
+
+    /**
+     * 向玩家请求 GameSave 并记下已群发的Tick
+     * 请求之前群发的Tick已包含在快照中 之后的Tick在恢复时重放
+     * @param donor 玩家
+     */
+    public void requestGameSave(Player donor) {
+        synchronized (tickLock) {
+            synchronized (donor.gameSaveTicks) {
+                donor.gameSaveTicks.add(lastTick);
+            }
+            donor.con.getGameSave();
+        }
+    }
+
+    /**
+     * 收到 GameSave 时记录检查点 (与 Tick 同一队列 保持顺序)
+     * @param player 发送的玩家 GameSave 按请求顺序到达
+     * @param save GameSave 数组包
+     */
+    public void checkpoint(Player player, Packet save) {
+        final int saveTick;
+        synchronized (player.gameSaveTicks) {
+            if (player.gameSaveTicks.isEmpty()) {
+                /* 没有请求过 不知道快照的Tick */
+                return;
+            }
+            saveTick = player.gameSaveTicks.removeIndex(0);
+        }
+        if (!running) {
+            return;
+        }
+        final byte[] bytes = save.getBytes();
+        final int size = 1 + 4 + 4 + 4 + bytes.length;
+        final ByteBuffer buffer = ByteBuffer.allocate(HEAD_SIZE + size);
+        buffer.putInt(size).putInt(0).put(CHECKPOINT).putInt(saveTick).putInt(save.type).putInt(bytes.length).put(bytes);
+        offer(buffer.array());
+    }
+
+    /**
+     * 游戏结束 写完剩余记录后删除日志
+     */
+    public synchronized void end() {
+        replay = null;
+        if (channel == null) {
+            return;
+        }
+        flush();
+        close();
+        if (!file.delete()) {
+            Log.debug("[Journal] Delete Failed", file.getPath());
+        }
+    }
+
+    /**
+     * 启动服务器时调用 有未结束的对局则恢复到等待重连的状态
+     * @return 是否恢复
+     */
+    public synchronized boolean recover() {
+        if (!enabled || !file.exists()) {
+            return false;
+        }
+        if (!Data.game.reConnect) {
+            Log.clog("[Journal] reConnect is disabled, skip recovery");
+            return false;
+        }
+        try {
+            final Recovered recovered = read();
+            if (recovered == null || recovered.save == null) {
+                Log.clog("[Journal] No checkpoint, skip recovery");
+                return false;
+            }
+            restore(recovered);
+            Log.clog("[Journal] Game recovered at tick " + recovered.saveTick + ", " + replay.size() + " tick(s) to replay");
+            return true;
+        } catch (Exception e) {
+            Log.error("[Journal] Recover Error", e);
+            return false;
+        }
+    }
+
+    /**
+     * 恢复的对局在第一个重连玩家收到 GameSave 后继续: 重放检查点之后的按键包 并接着原 Tick 启动
+     * 在 GameSave 群发之后 恢复Tick之前调用
+     */
+    public void resume() {
+        /* startGameTick 持有 Call 的锁再调用 start 不能在本对象的锁内调用 */
+        if (reopen()) {
+            Call.startGameTick(replayPeriod, replayTick);
+        }
+    }
+
+    private synchronized boolean reopen() {
+        if (replay == null) {
+            return false;
+        }
+        final Seq<GameCommandTick> ticks = replay;
+        replay = null;
+        try {
+            for (GameCommandTick tick : ticks) {
+                Static.groupNet.broadcast(Data.game.connectPacket.getGameTickCommandsByteBuf(tick.tick, tick.commands));
+            }
+        } catch (IOException e) {
+            Log.error("[Journal] Replay Error", e);
+        }
+        if (enabled) {
+            try {
+                /* 继续写入原日志 */
+                open(true);
+                channel.truncate(validLength);
+                startTask();
+            } catch (IOException e) {
+                Log.error("[Journal] Reopen Error", e);
+                close();
+            }
+        }
+        lastTick = replayTick;
+        return true;
+    }
+
+    private void offer(byte[] record) {
+        if (!queue.offer(record)) {
+            running = false;
+            /* Tick线程不等待写入 由后台线程作废日志 */
+            Threads.newThreadCore(this::invalidate);
+        }
+    }
+
+    /**
+     * 日志缺失记录 不能再用于恢复: 写入作废记录后关闭 并删除日志
+     */
+    private synchronized void invalidate() {
+        if (channel == null) {
+            return;
+        }
+        Log.error("[Journal] Queue overflow, journal disabled for this game");
+        queue.clear();
+        try {
+            writeNow(frame(INVALID, new byte[0]));
+        } catch (IOException e) {
+            Log.error("[Journal] Write Error", e);
+        }
+        close();
+        if (!file.delete()) {
+            Log.debug("[Journal] Delete Failed", file.getPath());
+        }
+    }
+
+    private void open(boolean append) throws IOException {
+        final File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Can't create " + parent.getPath());
+        }
+        if (append) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } else {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        queue.clear();
+        running = true;
+    }
+
+    private void startTask() {
+        flushTask = Threads.newThreadService2(this::flush, flushPeriod, flushPeriod, TimeUnit.MILLISECONDS);
+        if (checkpointPeriod > 0) {
+            checkpointTask = Threads.newThreadService2(() -> Data.game.gameSave.refresh(), checkpointPeriod, checkpointPeriod, TimeUnit.SECONDS);
+        }
+    }
+
+    private synchronized void flush() {
+        if (channel == null) {
+            return;
+        }
+        if (queue.drain(batch) == 0) {
+            return;
+        }
+        try {
+            final ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = ByteBuffer.wrap(seal(batch.get(i)));
+            }
+            final ByteBuffer last = buffers[buffers.length - 1];
+            while (last.hasRemaining()) {
+                channel.write(buffers);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            Log.error("[Journal] Write Error, journal disabled for this game", e);
+            close();
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private void writeNow(byte[] record) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(seal(record));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    private synchronized void close() {
+        running = false;
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        if (checkpointTask != null) {
+            checkpointTask.cancel(false);
+            checkpointTask = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.error("[Journal] Close Error", e);
+            }
+            channel = null;
+        }
+        queue.clear();
+    }
+
+    private byte[] seal(byte[] record) {
+        crc.reset();
+        crc.update(record, HEAD_SIZE, record.length - HEAD_SIZE);
+        ByteBuffer.wrap(record).putInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    private static byte[] frame(byte type, byte[] data) {
+        final ByteBuffer buffer = ByteBuffer.allocate(HEAD_SIZE + 1 + data.length);
+        buffer.putInt(1 + data.length).putInt(0).put(type).put(data);
+        return buffer.array();
+    }
+
+    private static byte[] encodeStart(int period) throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        final DataOutputStream stream = new DataOutputStream(buffer);
+        final Rules game = Data.game;
+        stream.writeInt(period);
+        stream.writeInt(game.maxPlayer);
+        stream.writeInt(game.maps.mapType.ordinal());
+        stream.writeUTF(game.maps.mapName);
+        stream.writeUTF(game.maps.mapPlayer);
+        stream.writeInt(game.credits);
+        stream.writeInt(game.mist);
+        stream.writeFloat(game.income);
+        stream.writeInt(game.initUnit);
+        stream.writeBoolean(game.noNukes);
+        stream.writeBoolean(game.sharedControl);
+        int count = 0;
+        for (Player player : game.playerData) {
+            if (player != null) {
+                count++;
+            }
+        }
+        stream.writeInt(count);
+        for (Player player : game.playerData) {
+            if (player != null) {
+                stream.writeInt(player.site);
+                stream.writeInt(player.team);
+                stream.writeUTF(player.uuid);
+                stream.writeUTF(player.name);
+                stream.writeUTF(player.ip);
+                stream.writeBoolean(player.isAdmin);
+            }
+        }
+        stream.flush();
+        return frame(START, buffer.toByteArray());
+    }
+
+    /**
+     * 读取日志 只取最后一局 (最后一个 START 之后)
+     */
+    private Recovered read() throws IOException {
+        final byte[] all;
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate((int) in.size());
+            while (buffer.hasRemaining() && in.read(buffer) != -1) {
+            }
+            all = buffer.array();
+        }
+        final ByteBuffer data = ByteBuffer.wrap(all);
+        Recovered recovered = null;
+        validLength = 0;
+        while (data.remaining() >= HEAD_SIZE + 1) {
+            final int pos = data.position();
+            final int size = data.getInt();
+            final int check = data.getInt();
+            if (size < 1 || size > data.remaining()) {
+                Log.clog("[Journal] Truncated record at " + pos + ", ignored");
+                break;
+            }
+            crc.reset();
+            crc.update(all, data.position(), size);
+            if ((int) crc.getValue() != check) {
+                Log.clog("[Journal] Bad checksum at " + pos + ", ignored");
+                break;
+            }
+            final ByteBuffer body = ByteBuffer.wrap(all, data.position() + 1, size - 1).slice();
+            final byte type = data.get();
+            data.position(data.position() + size - 1);
+            validLength = data.position();
+            switch (type) {
+                case START:
+                    recovered = new Recovered(body);
+                    break;
+                case TICK:
+                    if (recovered != null) {
+                        recovered.tick(body);
+                    }
+                    break;
+                case CHECKPOINT:
+                    if (recovered != null) {
+                        recovered.checkpoint(body);
+                    }
+                    break;
+                case INVALID:
+                    recovered = null;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return recovered;
+    }
+
+    private void restore(final Recovered recovered) throws IOException {
+        final Rules game = Data.game;
+        final DataInputStream stream = recovered.start;
+        replayPeriod = stream.readInt();
+        /* init 会重置 playerData 与 income 需最先调用 */
+        game.init(stream.readInt(), game.port);
+        final GameMaps.MapType mapType = GameMaps.MapType.values()[stream.readInt()];
+        final String mapName = stream.readUTF();
+        final String mapPlayer = stream.readUTF();
+        if (mapType != GameMaps.MapType.defaultMap) {
+            final GameMaps.MapData data = game.mapsData.get(mapName);
+            if (data == null) {
+                throw new IOException("Map not found: " + mapName);
+            }
+            data.readMap();
+            game.maps.mapData = data;
+        }
+        game.maps.mapType = mapType;
+        game.maps.mapName = mapName;
+        game.maps.mapPlayer = mapPlayer;
+        game.credits = stream.readInt();
+        game.mist = stream.readInt();
+        game.income = stream.readFloat();
+        game.initUnit = stream.readInt();
+        game.noNukes = stream.readBoolean();
+        game.sharedControl = stream.readBoolean();
+
+        final LocaleUtil localeUtil = Data.localeUtilMap.get("CN");
+        int sharedControlPlayer = 0;
+        for (int i = stream.readInt(); i > 0; i--) {
+            final int site = stream.readInt();
+            final int team = stream.readInt();
+            final String uuid = stream.readUTF();
+            final String name = stream.readUTF();
+            final String ip = stream.readUTF();
+            final Player player = new Player(null, ip, uuid, name, localeUtil);
+            player.site = site;
+            player.team = team;
+            player.isAdmin = stream.readBoolean();
+            /* 全部视为掉线 由AI接管 直到重连 */
+            player.sharedControl = true;
+            sharedControlPlayer |= 1 << site;
+            game.playerData[site] = player;
+            Data.playerAll.add(player);
+        }
+        game.sharedControlPlayer = sharedControlPlayer;
+        game.isStartGame = true;
+        if (game.ping != null) {
+            game.ping.cancel(true);
+            game.ping = null;
+        }
+        game.gameSave.complete(recovered.save);
+
+        replayTick = recovered.lastTick;
+        replay = recovered.ticks;
+    }
+
+    private static class GameCommandTick {
+        final int tick;
+        final Seq<GameCommand> commands;
+
+        GameCommandTick(int tick, Seq<GameCommand> commands) {
+            this.tick = tick;
+            this.commands = commands;
+        }
+    }
+
+    private static class Recovered {
+        final DataInputStream start;
+        Packet save = null;
+        int saveTick = 0;
+        /** 最后写入的Tick (含空Tick) */
+        int lastTick = 0;
+        /** 检查点之后有按键包的Tick (检查点记录之前也可能有 请求之后收到之前的Tick) */
+        Seq<GameCommandTick> ticks = new Seq<>();
+
+        Recovered(ByteBuffer body) {
+            final byte[] bytes = new byte[body.remaining()];
+            body.get(bytes);
+            start = new DataInputStream(new ByteArrayInputStream(bytes));
+        }
+
+        void tick(ByteBuffer body) {
+            final int tick = body.getInt();
+            final int count = body.getInt();
+            lastTick = tick;
+            if (count == 0) {
+                return;
+            }
+            final Seq<GameCommand> commands = new Seq<>(count);
+            for (int i = 0; i < count; i++) {
+                final int sendBy = body.getInt();
+                final byte[] arr = new byte[body.getInt()];
+                body.get(arr);
+                commands.add(new GameCommand(sendBy, arr));
+            }
+            ticks.add(new GameCommandTick(tick, commands));
+        }
+
+        void checkpoint(ByteBuffer body) {
+            saveTick = body.getInt();
+            final int type = body.getInt();
+            final byte[] bytes = new byte[body.getInt()];
+            body.get(bytes);
+            save = new Packet(type, bytes);
+            final Seq<GameCommandTick> after = new Seq<>();
+            ticks.each(t -> t.tick > saveTick, after::add);
+            ticks = after;
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.github.dr.rwserver.game;
 
 import com.github.dr.rwserver.data.global.Data;
-import com.github.dr.rwserver.util.file.FileUtil;
+import com.github.dr.rwserver.io.EncodedString;
 import com.github.dr.rwserver.util.log.Log;
-import com.github.dr.rwserver.util.zip.zip.ZipDecoder;
+import io.netty.buffer.ByteBuf;
+
+import java.io.UTFDataFormatException;
 
 import static com.github.dr.rwserver.game.GameMaps.MapFileType.file;
 
@@ -17,6 +19,25 @@ public class GameMaps {
     public String mapName = "Crossing Large (10p)";
     public String mapPlayer = "[z;p10]";
 
+    /** mapPlayer + mapName 的编码缓存 任一字段被重新赋值后失效 */
+    private String encodedMapPlayer = null;
+    private String encodedMapName = null;
+    private EncodedString encoded = null;
+
+    /**
+     * 服务器信息中的地图名 (mapPlayer + mapName) 已编码
+     * @return EncodedString
+     * @throws UTFDataFormatException 地图名过长
+     */
+    public synchronized EncodedString getEncodedMapName() throws UTFDataFormatException {
+        if (encoded == null || encodedMapPlayer != mapPlayer || encodedMapName != mapName) {
+            encoded = EncodedString.of(mapPlayer + mapName);
+            encodedMapPlayer = mapPlayer;
+            encodedMapName = mapName;
+        }
+        return encoded;
+    }
+
     public enum MapType {
         /**
          * ?
@@ -38,7 +59,10 @@ public class GameMaps {
         public final String zipFileName;
 
         public int mapSize = 0;
+        /** 外部直接提供的地图数据 从文件读取的在 {@link #getPayload()} */
         public byte[] bytesMap = null;
+        /** {@link MapCache} 中的地图数据 (持有一份引用) */
+        private ByteBuf payload = null;
 
         public MapData(final MapType mapType,final MapFileType mapFileType,final String mapFileName) {
             this.mapType = mapType;
@@ -76,21 +100,18 @@ public class GameMaps {
             return "savedGames".equals(mapType.name()) ? ".save" : ".tmx";
         }
 
-        public void readMap() {
-            FileUtil fileUtil = FileUtil.File(Data.Plugin_Maps_Path);
+        public synchronized void readMap() {
             switch (mapFileType) {
                 case file:
-                    try {
-                        this.bytesMap = fileUtil.toPath(mapFileName+getType()).readFileByte();
-                        this.mapSize = bytesMap.length;
-                    } catch (Exception e) {
-                        Log.error("Read Map Bytes Error",e);
-                    }
-                    break;
                 case zip:
+                    if (mapFileName == null) {
+                        /* 外部提供的数据 */
+                        break;
+                    }
+                    releasePayload();
                     try {
-                        this.bytesMap = new ZipDecoder(fileUtil.toPath(zipFileName).getFile()).GetTheFileBytesOfTheSpecifiedSuffixInTheZip(this);
-                        this.mapSize = bytesMap.length;
+                        this.payload = MapCache.get(this);
+                        this.mapSize = payload.readableBytes();
                     } catch (Exception e) {
                         Log.error("Read Map Bytes Error",e);
                     }
@@ -101,9 +122,28 @@ public class GameMaps {
             }
         }
 
-        public void clean() {
+        /**
+         * @return 从文件读取的地图数据 (只读 不要释放) 未读取或外部提供的为 null
+         */
+        public synchronized ByteBuf getPayload() {
+            return payload;
+        }
+
+        public synchronized void clean() {
             this.mapSize = 0;
             this.bytesMap = null;
+            releasePayload();
+        }
+
+        private void releasePayload() {
+            if (payload != null) {
+                /* 开始游戏包持有地图数据的引用 */
+                if (Data.game != null) {
+                    Data.game.connectPacket.clearStartGameCache();
+                }
+                payload.release();
+                payload = null;
+            }
         }
     }
 }
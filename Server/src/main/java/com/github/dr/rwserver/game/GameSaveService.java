@@ -0,0 +1,167 @@
+package com.github.dr.rwserver.game;
+
+import com.github.dr.rwserver.core.ex.Threads;
+import com.github.dr.rwserver.data.Player;
+import com.github.dr.rwserver.data.global.Data;
+import com.github.dr.rwserver.io.Packet;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 重连用的 GameSave 快照
+ * 同时到达的请求共用一次向客户端的请求 (同一个 Future) 从延迟最低的玩家获取
+ * 向客户端请求期间暂停Tick ({@link Rules#reConnectBreak}) 超时后 Future 以 TimeoutException 结束
+ * 非 Async 的回调在恢复Tick之前执行 (可在回调内群发快照)
+ * 距上次快照不超过 maxAge 时直接返回 不再暂停全体 (旧快照会群发给全体 默认关闭)
+ * @author Dr
+ */
+public class GameSaveService {
+    private final long timeout;
+    private final long maxAge;
+
+    private volatile Packet latest = null;
+    private volatile long latestTime = 0;
+    private CompletableFuture<Packet> pending = null;
+    private ScheduledFuture<?> pendingTimer = null;
+
+    /**
+     * @param timeout 向客户端请求的超时 (ms)
+     * @param maxAge 可直接复用的快照年龄 (ms) 0为每次都重新请求
+     */
+    public GameSaveService(long timeout, long maxAge) {
+        this.timeout = timeout;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * 取一份快照
+     * @param exclude 不作为来源的玩家 (重连者本身)
+     * @return 完成时为 GameSave 包 (数组包)
+     */
+    public synchronized CompletableFuture<Packet> request(final Player exclude) {
+        final Packet recent = getRecent();
+        if (recent != null) {
+            return CompletableFuture.completedFuture(recent);
+        }
+        if (pending != null) {
+            return pending;
+        }
+        final Player donor = findDonor(exclude);
+        if (donor == null && latest != null) {
+            /* 没有可用的来源 (如从日志恢复的对局) 旧快照也比断开好 */
+            return CompletableFuture.completedFuture(latest);
+        }
+        if (donor == null) {
+            final CompletableFuture<Packet> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("No player can provide GameSave"));
+            return failed;
+        }
+
+        final CompletableFuture<Packet> future = new CompletableFuture<>();
+        pending = future;
+        Data.game.reConnectBreak = true;
+        pendingTimer = Threads.newThreadService(
+                () -> finish(future, null, new TimeoutException("GameSave timeout: " + donor.name)), (int) timeout, TimeUnit.MILLISECONDS);
+        Data.game.journal.requestGameSave(donor);
+        return future;
+    }
+
+    /**
+     * 不暂停Tick 向延迟最低的玩家请求一份新快照 (检查点用) 已有请求时忽略
+     */
+    public synchronized void refresh() {
+        if (pending != null) {
+            return;
+        }
+        final Player donor = findDonor(null);
+        if (donor != null) {
+            Data.game.journal.requestGameSave(donor);
+        }
+    }
+
+    /**
+     * 先完成 Future (同步执行回调) 再恢复Tick
+     */
+    private void finish(final CompletableFuture<Packet> future, final Packet packet, final Throwable error) {
+        if (error == null) {
+            future.complete(packet);
+        } else {
+            future.completeExceptionally(error);
+        }
+        synchronized (this) {
+            if (pending == future) {
+                pending = null;
+                pendingTimer.cancel(false);
+                pendingTimer = null;
+                Data.game.reConnectBreak = false;
+            }
+        }
+    }
+
+    /**
+     * 收到客户端的 GameSave (PACKET_SYNC)
+     * @param packet 数组包
+     */
+    public void complete(final Packet packet) {
+        final CompletableFuture<Packet> future;
+        synchronized (this) {
+            latest = packet;
+            latestTime = System.currentTimeMillis();
+            future = pending;
+        }
+        if (future != null) {
+            finish(future, packet, null);
+        }
+    }
+
+    /**
+     * @return 未超过 maxAge 的快照 没有为 null
+     */
+    public Packet getRecent() {
+        final Packet packet = latest;
+        if (packet == null || maxAge <= 0 || getAge() > maxAge) {
+            return null;
+        }
+        return packet;
+    }
+
+    /**
+     * @return 距上次快照的毫秒数 没有为 -1
+     */
+    public long getAge() {
+        return latest == null ? -1 : System.currentTimeMillis() - latestTime;
+    }
+
+    /**
+     * 游戏结束时清空
+     */
+    public void clear() {
+        final CompletableFuture<Packet> future;
+        synchronized (this) {
+            latest = null;
+            latestTime = 0;
+            future = pending;
+        }
+        if (future != null) {
+            finish(future, null, new IOException("Game Over"));
+        }
+    }
+
+    private static Player findDonor(final Player exclude) {
+        Player donor = null;
+        for (int i = 0; i < Data.playerGroup.size(); i++) {
+            final Player player = Data.playerGroup.get(i);
+            if (player == exclude || player.con == null || player.con.getTryBoolean()) {
+                continue;
+            }
+            if (donor == null || player.ping < donor.ping) {
+                donor = player;
+            }
+        }
+        return donor;
+    }
+}
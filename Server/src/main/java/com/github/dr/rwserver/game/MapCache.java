@@ -0,0 +1,178 @@
+package com.github.dr.rwserver.game;
+
+import com.github.dr.rwserver.data.global.Data;
+import com.github.dr.rwserver.util.file.FileUtil;
+import com.github.dr.rwserver.util.zip.zip.ZipDecoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 自定义地图数据缓存 按 文件(+压缩包内的名字) 缓存 文件的修改时间或大小变化后重新读取
+ * .tmx/.save 与压缩包内未压缩 (STORED) 的地图直接 mmap , 压缩的解压到堆外内存 都不占用堆
+ * 引用计数归零时立即 unmap/释放堆外内存 ({@link NativeByteBuf}) 不等待GC
+ * 超出内存上限时按 LRU 淘汰 正在使用的地图持有自己的引用 淘汰后仍然有效
+ * @author Dr
+ */
+public final class MapCache {
+    private static final Map<String, Entry> CACHE = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static long budget = 64L << 20;
+    private static long size = 0;
+    private static long hit = 0;
+    private static long miss = 0;
+    private static long evict = 0;
+
+    private MapCache() {
+    }
+
+    /**
+     * 读取配置后调用 之前使用默认值 (64MB)
+     * @param budgetMb 内存上限 (MB) 0为不缓存
+     */
+    public static synchronized void configure(int budgetMb) {
+        budget = Math.max(0, budgetMb) * (1L << 20);
+        trim(null);
+    }
+
+    /**
+     * 取地图数据
+     * @param data 地图
+     * @return 只读的地图数据 (retainedDuplicate) 调用者负责释放
+     * @throws IOException 读取失败
+     */
+    public static synchronized ByteBuf get(final GameMaps.MapData data) throws IOException {
+        final FileUtil fileUtil = FileUtil.File(Data.Plugin_Maps_Path);
+        final File file;
+        final String key;
+        if (data.mapFileType == GameMaps.MapFileType.zip) {
+            file = fileUtil.toPath(data.zipFileName).getFile();
+            key = file.getPath() + "!" + data.mapFileName + data.getType();
+        } else {
+            file = fileUtil.toPath(data.mapFileName + data.getType()).getFile();
+            key = file.getPath();
+        }
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+
+        Entry entry = CACHE.get(key);
+        if (entry != null) {
+            if (entry.lastModified == lastModified && entry.length == length) {
+                hit++;
+                return entry.payload.retainedDuplicate();
+            }
+            CACHE.remove(key);
+            remove(entry);
+        }
+        miss++;
+
+        final ByteBuf payload = data.mapFileType == GameMaps.MapFileType.zip ? readZip(file, data) : mmap(file);
+        if (payload.readableBytes() > budget) {
+            return payload;
+        }
+        entry = new Entry(lastModified, length, payload);
+        CACHE.put(key, entry);
+        size += payload.readableBytes();
+        trim(entry);
+        return payload.retainedDuplicate();
+    }
+
+    public static synchronized void clear() {
+        CACHE.values().forEach(MapCache::remove);
+        CACHE.clear();
+        /* 开始游戏包持有地图数据的引用 */
+        if (Data.game != null) {
+            Data.game.connectPacket.clearStartGameCache();
+        }
+    }
+
+    public static synchronized String getStats() {
+        return "MapCache: " + CACHE.size() + " / " + (size >> 10) + "KB / " + (budget >> 10) + "KB / Hit: " + hit + " / Miss: " + miss + " / Evict: " + evict;
+    }
+
+    /**
+     * 淘汰最久未用的 直到不超过上限
+     * @param keep 不淘汰 (刚放入的)
+     */
+    private static void trim(final Entry keep) {
+        final Iterator<Entry> iterator = CACHE.values().iterator();
+        while (size > budget && iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (entry == keep) {
+                continue;
+            }
+            iterator.remove();
+            remove(entry);
+            evict++;
+        }
+    }
+
+    private static void remove(final Entry entry) {
+        size -= entry.payload.readableBytes();
+        entry.payload.release();
+    }
+
+    /**
+     * 映射后即可关闭 FileChannel 映射在 ByteBuf 释放前有效
+     */
+    private static ByteBuf mmap(final File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new NativeByteBuf(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * STORED 的地图为映射 DEFLATED 的解压到堆外
+     */
+    private static ByteBuf readZip(final File file, final GameMaps.MapData data) throws IOException {
+        try (ZipDecoder zip = new ZipDecoder(file)) {
+            final ByteBuffer buffer = zip.getMapBuffer(data);
+            if (buffer == null) {
+                throw new IOException("Map not found: " + data.mapFileName + " in " + file.getName());
+            }
+            return new NativeByteBuf(buffer);
+        }
+    }
+
+    /**
+     * 独占一个映射或 allocateDirect 的 ByteBuffer 释放时 unmap/释放 (Unpooled.wrappedBuffer 只能等GC)
+     */
+    private static final class NativeByteBuf extends CompositeByteBuf {
+        private ByteBuffer buffer;
+
+        NativeByteBuf(final ByteBuffer buffer) {
+            super(UnpooledByteBufAllocator.DEFAULT, true, 1, Unpooled.wrappedBuffer(buffer));
+            this.buffer = buffer;
+        }
+
+        @Override
+        protected void deallocate() {
+            super.deallocate();
+            PlatformDependent.freeDirectBuffer(buffer);
+            buffer = null;
+        }
+    }
+
+    private static class Entry {
+        final long lastModified;
+        final long length;
+        final ByteBuf payload;
+
+        Entry(long lastModified, long length, ByteBuf payload) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.github.dr.rwserver.game;
+
+import com.github.dr.rwserver.data.global.Data;
+import com.github.dr.rwserver.struct.ObjectMap;
+import com.github.dr.rwserver.struct.Seq;
+import com.github.dr.rwserver.util.file.FileUtil;
+import com.github.dr.rwserver.util.log.Log;
+import com.github.dr.rwserver.util.zip.zip.realization.ZipEntry;
+import com.github.dr.rwserver.util.zip.zip.realization.ZipFile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Enumeration;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 地图压缩包索引 (压缩包内的 .tmx/.save 名)
+ * 只读压缩包的中央目录 多个压缩包在 ForkJoinPool 中并行读取
+ * 结果保存到 /data/cache/maps.index 文件的修改时间与大小都未变化时直接使用 不再打开压缩包
+ * @author Dr
+ */
+public final class MapIndex {
+    private static final int MAGIC = 0x524D4958;
+    private static final int VERSION = 1;
+    /** 超过的地图不列出 (同原逻辑) */
+    private static final int MAX_SIZE = 1024 * 1024 * 5;
+    /** 每个任务至少处理的压缩包数 */
+    private static final int THRESHOLD = 4;
+
+    private MapIndex() {
+    }
+
+    /**
+     * @param zips 压缩包
+     * @return 与 zips 一一对应 读取失败的为 null
+     */
+    public static ZipMaps[] scan(final Seq<File> zips) {
+        final File indexFile = FileUtil.File(Data.Plugin_Cache_Path).toPath("maps.index").getFile();
+        final ObjectMap<String, ZipMaps> cached = load(indexFile);
+        final ZipMaps[] result = new ZipMaps[zips.size()];
+        final AtomicInteger read = new AtomicInteger();
+        ForkJoinPool.commonPool().invoke(new ScanTask(zips, result, cached, read, 0, zips.size()));
+
+        int count = 0;
+        for (ZipMaps maps : result) {
+            if (maps != null) {
+                count++;
+            }
+        }
+        /* 有新读取的 或有压缩包被删除/读取失败 */
+        if (read.get() > 0 || count != cached.size) {
+            save(indexFile, zips, result);
+        }
+        Log.clog("[MapIndex] " + zips.size() + " zip(s), " + (count - read.get()) + " from cache");
+        return result;
+    }
+
+    private static ZipMaps read(final File file) throws IOException {
+        final ZipMaps maps = new ZipMaps(file.lastModified(), file.length());
+        try (ZipFile zipFile = new ZipFile(file)) {
+            for (Enumeration<ZipEntry> entries = zipFile.getEntries(); entries.hasMoreElements();) {
+                final ZipEntry zipEntry = entries.nextElement();
+                if (zipEntry.isDirectory() || zipEntry.getSize() >= MAX_SIZE) {
+                    continue;
+                }
+                final String name = zipEntry.getName();
+                if (name.endsWith(".tmx")) {
+                    maps.tmx.add(name.substring(0, name.length() - 4));
+                } else if (name.endsWith(".save")) {
+                    maps.save.add(name.substring(0, name.length() - 5));
+                }
+            }
+        }
+        return maps;
+    }
+
+    private static ObjectMap<String, ZipMaps> load(final File indexFile) {
+        final ObjectMap<String, ZipMaps> cached = new ObjectMap<>();
+        if (!indexFile.exists()) {
+            return cached;
+        }
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (stream.readInt() != MAGIC || stream.readInt() != VERSION) {
+                return cached;
+            }
+            for (int i = stream.readInt(); i > 0; i--) {
+                final String name = stream.readUTF();
+                final ZipMaps maps = new ZipMaps(stream.readLong(), stream.readLong());
+                for (int j = stream.readInt(); j > 0; j--) {
+                    maps.tmx.add(stream.readUTF());
+                }
+                for (int j = stream.readInt(); j > 0; j--) {
+                    maps.save.add(stream.readUTF());
+                }
+                cached.put(name, maps);
+            }
+        } catch (IOException e) {
+            Log.error("[MapIndex] Load Error, rebuild", e);
+            cached.clear();
+        }
+        return cached;
+    }
+
+    /**
+     * 先写临时文件再替换 中途失败不会损坏原索引
+     */
+    private static void save(final File indexFile, final Seq<File> zips, final ZipMaps[] result) {
+        final File parent = indexFile.getParentFile();
+        final File temp = new File(parent, indexFile.getName() + ".tmp");
+        try {
+            if (!parent.exists() && !parent.mkdirs()) {
+                throw new IOException("Can't create " + parent.getPath());
+            }
+            try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                int count = 0;
+                for (ZipMaps maps : result) {
+                    if (maps != null) {
+                        count++;
+                    }
+                }
+                stream.writeInt(MAGIC);
+                stream.writeInt(VERSION);
+                stream.writeInt(count);
+                for (int i = 0; i < result.length; i++) {
+                    final ZipMaps maps = result[i];
+                    if (maps == null) {
+                        continue;
+                    }
+                    stream.writeUTF(zips.get(i).getName());
+                    stream.writeLong(maps.lastModified);
+                    stream.writeLong(maps.length);
+                    stream.writeInt(maps.tmx.size());
+                    for (String name : maps.tmx) {
+                        stream.writeUTF(name);
+                    }
+                    stream.writeInt(maps.save.size());
+                    for (String name : maps.save) {
+                        stream.writeUTF(name);
+                    }
+                }
+            }
+            Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.error("[MapIndex] Save Error", e);
+        }
+    }
+
+    /**
+     * 压缩包内的地图名 (不含后缀)
+     */
+    public static class ZipMaps {
+        final long lastModified;
+        final long length;
+        public final Seq<String> tmx = new Seq<>(8);
+        public final Seq<String> save = new Seq<>(8);
+
+        ZipMaps(long lastModified, long length) {
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    private static class ScanTask extends RecursiveAction {
+        private final Seq<File> zips;
+        private final ZipMaps[] result;
+        private final ObjectMap<String, ZipMaps> cached;
+        private final AtomicInteger read;
+        private final int from;
+        private final int to;
+
+        ScanTask(Seq<File> zips, ZipMaps[] result, ObjectMap<String, ZipMaps> cached, AtomicInteger read, int from, int to) {
+            this.zips = zips;
+            this.result = result;
+            this.cached = cached;
+            this.read = read;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > THRESHOLD) {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new ScanTask(zips, result, cached, read, from, mid), new ScanTask(zips, result, cached, read, mid, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                final File file = zips.get(i);
+                /* 只读 多线程访问安全 */
+                final ZipMaps old = cached.get(file.getName());
+                if (old != null && old.lastModified == file.lastModified() && old.length == file.length()) {
+                    result[i] = old;
+                    continue;
+                }
+                try {
+                    result[i] = MapIndex.read(file);
+                    read.incrementAndGet();
+                } catch (Exception e) {
+                    Log.error("ZIP READ", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.github.dr.rwserver.game;
+
+import com.github.dr.rwserver.core.ex.Threads;
+import com.github.dr.rwserver.data.Player;
+import com.github.dr.rwserver.data.global.Data;
+import com.github.dr.rwserver.net.AbstractNetConnect;
+import com.github.dr.rwserver.net.AbstractNetPacket;
+import com.github.dr.rwserver.struct.Seq;
+import com.github.dr.rwserver.util.log.Log;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 回放服务器模式 把 {@link ReplayRecorder} 的录像作为观战画面发给连接的客户端
+ * 每个观众独立进度 可调倍速 按Tick序号跳转 (索引定位为 O(1) 但客户端需要从头模拟 跳转时向前为连续补发 向后为重新开局后补发)
+ * 补发按块进行 只在连接可写时发送 避免积压超过 netMaxBacklog 被断开
+ * 文件只读 多个观众的位置读取 (FileChannel#read(ByteBuffer, long)) 可并发
+ * @author Dr
+ */
+public class ReplayPlayback {
+    /** 最小发送间隔 更高的倍速改为每次发送多个Tick */
+    private static final int MIN_INTERVAL = 10;
+    /** 补发时每次最多发送的Tick数 */
+    private static final int SEEK_CHUNK = 256;
+    private static final float MIN_SPEED = 0.1f;
+    private static final float MAX_SPEED = 16f;
+
+    private final String name;
+    private final FileChannel data;
+    private final FileChannel index;
+    private final int period;
+    private final byte[] teamList;
+    private final byte[] startGame;
+    private final float speed;
+
+    /**
+     * @param file .rwr 文件
+     * @param speed 默认倍速
+     * @throws IOException 文件不存在或格式错误
+     */
+    public ReplayPlayback(File file, float speed) throws IOException {
+        this.name = file.getName();
+        this.speed = speed > 0 ? Math.max(MIN_SPEED, Math.min(speed, MAX_SPEED)) : 1f;
+        data = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            index = FileChannel.open(ReplayRecorder.getIndexFile(file).toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            data.close();
+            throw e;
+        }
+        try {
+            final ByteBuffer head = read(data, 0, 4 * 4);
+            if (head.getInt() != ReplayRecorder.MAGIC || head.getInt() != ReplayRecorder.VERSION) {
+                throw new IOException("Not a replay: " + name);
+            }
+            period = head.getInt();
+            teamList = read(data, 4 * 4, head.getInt()).array();
+            final long startPosition = 4 * 4 + teamList.length;
+            startGame = read(data, startPosition + 4, read(data, startPosition, 4).getInt()).array();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return 已写入索引的Tick数
+     */
+    public int getTickCount() {
+        try {
+            return (int) (index.size() / 8);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 新观众 发送开局数据后开始播放
+     * @param player 观众 (不占用位置)
+     */
+    public void join(Player player) {
+        final Feed feed = new Feed(player.con);
+        player.replayFeed = feed;
+        feed.restart(0);
+    }
+
+    public void close() {
+        try {
+            data.close();
+            index.close();
+        } catch (IOException e) {
+            Log.error("[Replay] Close Error", e);
+        }
+    }
+
+    public String getStats() {
+        return "Replay: " + name + " / Ticks: " + getTickCount() + " / Period: " + period + "ms / Speed: " + speed;
+    }
+
+    /**
+     * 读取第 i 个Tick 并编码为 Tick 包
+     */
+    private ByteBuf readTick(int i) throws IOException {
+        final AbstractNetPacket packet = Data.game.connectPacket;
+        final long position = read(index, i * 8L, 8).getLong();
+        final ByteBuffer record = read(data, position + 4, read(data, position, 4).getInt());
+        final int tick = record.getInt();
+        final int count = record.getInt();
+        if (count == 0) {
+            return packet.getTickByteBuf(tick);
+        }
+        final Seq<GameCommand> commands = new Seq<>(count);
+        for (int j = 0; j < count; j++) {
+            final byte[] arr = new byte[record.getInt()];
+            record.get(arr);
+            commands.add(new GameCommand(0, arr));
+        }
+        return packet.getGameTickCommandsByteBuf(tick, commands);
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Replay truncated at " + position);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 单个观众的播放进度
+     */
+    public class Feed {
+        private final AbstractNetConnect con;
+        private ScheduledFuture task = null;
+        /** 下一个发送的Tick序号 */
+        private int next = 0;
+        /** 跳转的目标 补发完成前不正常播放 */
+        private int target = 0;
+        private float speed = ReplayPlayback.this.speed;
+
+        private Feed(AbstractNetConnect con) {
+            this.con = con;
+        }
+
+        /**
+         * @param speed 倍速 (>0) 限制在 0.1-16
+         */
+        public synchronized void setSpeed(float speed) {
+            if (!(speed > 0)) {
+                return;
+            }
+            this.speed = Math.max(MIN_SPEED, Math.min(speed, MAX_SPEED));
+            schedule();
+        }
+
+        /**
+         * 跳转到第 target 个Tick
+         * @param target Tick序号
+         */
+        public synchronized void seek(int target) {
+            target = Math.max(0, Math.min(target, getTickCount()));
+            if (target < next) {
+                restart(target);
+                return;
+            }
+            this.target = target;
+            if (task == null) {
+                schedule();
+            }
+            catchUp();
+        }
+
+        public synchronized int getPosition() {
+            return next;
+        }
+
+        public synchronized void stop() {
+            if (task != null) {
+                task.cancel(false);
+                task = null;
+            }
+        }
+
+        /**
+         * 重新发送开局数据 并补发到 target
+         */
+        private synchronized void restart(int target) {
+            try {
+                con.sendPacket(Unpooled.wrappedBuffer(teamList));
+                con.sendServerInfo(true);
+                con.sendPacket(Unpooled.wrappedBuffer(startGame));
+            } catch (IOException e) {
+                Log.error("[Replay] Start Error", e);
+                stop();
+                return;
+            }
+            next = 0;
+            this.target = target;
+            schedule();
+            catchUp();
+        }
+
+        /**
+         * 补发到 target 每次最多 SEEK_CHUNK 个 不可写时停下 由下次 step 继续
+         * @return 是否已补发完成
+         */
+        private boolean catchUp() {
+            for (int i = 0; next < target; i++) {
+                if (i >= SEEK_CHUNK || !con.isWritable() || !send()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void schedule() {
+            stop();
+            final int interval = Math.max(MIN_INTERVAL, Math.round(period / speed));
+            final int perStep = Math.max(1, Math.round(speed * interval / period));
+            task = Threads.newThreadService2(() -> step(perStep), interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void step(int perStep) {
+            if (task == null || !catchUp()) {
+                return;
+            }
+            for (int i = 0; i < perStep; i++) {
+                if (next >= getTickCount()) {
+                    stop();
+                    con.sendSystemMessage(con.getPlayer().localeUtil.getinput("replay.end"));
+                    return;
+                }
+                if (!send()) {
+                    return;
+                }
+            }
+        }
+
+        private boolean send() {
+            try {
+                con.sendPacket(readTick(next));
+                next++;
+                return true;
+            } catch (IOException e) {
+                Log.error("[Replay] Read Error", e);
+                stop();
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.github.dr.rwserver.game;
+
+import com.github.dr.rwserver.core.ex.Threads;
+import com.github.dr.rwserver.data.global.Data;
+import com.github.dr.rwserver.net.AbstractNetPacket;
+import com.github.dr.rwserver.struct.MpscRing;
+import com.github.dr.rwserver.struct.Seq;
+import com.github.dr.rwserver.util.file.FileUtil;
+import com.github.dr.rwserver.util.file.LoadConfig;
+import com.github.dr.rwserver.util.log.Log;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对局录像 只追加写入
+ * .rwr: 文件头 (魔数 | 版本 | Tick周期 | 队伍列表包 | 开始游戏包) 之后每个Tick一条记录 (int 长度 | int Tick | int 数量 | (int 长度 | 按键包)...)
+ * .rwi: 每个Tick一个 long 为该Tick记录在 .rwr 中的位置 第N个Tick的位置在 N*8 处 跳转为 O(1)
+ * Tick线程只入队 由后台任务批量写入 先写 .rwr 再写 .rwi 索引不会指向未写入的数据
+ * @author Dr
+ */
+public class ReplayRecorder {
+    static final int MAGIC = 0x52575250;
+    static final int VERSION = 1;
+    static final String DATA_SUFFIX = ".rwr";
+    static final String INDEX_SUFFIX = ".rwi";
+    private static final int FLUSH_PERIOD = 1000;
+    private static final int CAPACITY = 4096;
+
+    private final boolean enabled;
+    private final MpscRing<byte[]> queue;
+    /** 仅写入任务使用 */
+    private final Seq<byte[]> batch = new Seq<>(64);
+
+    private FileChannel data = null;
+    private FileChannel index = null;
+    private long dataSize = 0;
+    private File file = null;
+    private ScheduledFuture flushTask = null;
+    private volatile boolean running = false;
+
+    public ReplayRecorder(LoadConfig config) {
+        enabled = config.readBoolean("replay",false);
+        queue = new MpscRing<>(CAPACITY);
+    }
+
+    /**
+     * 游戏开始 新建录像并写入文件头
+     * @param period Tick 周期
+     */
+    public synchronized void start(int period) {
+        if (!enabled || running) {
+            return;
+        }
+        try {
+            final byte[] teamList = getTeamList();
+            final byte[] startGame = toBytes(Data.game.connectPacket.getStartGameByteBuf());
+
+            final String name = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+            file = FileUtil.File(Data.Plugin_Data_Path).toPath("replay").toPath(name + DATA_SUFFIX).getFile();
+            final File parent = file.getParentFile();
+            if (!parent.exists() && !parent.mkdirs()) {
+                throw new IOException("Can't create " + parent.getPath());
+            }
+            data = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            index = FileChannel.open(getIndexFile(file).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+            final ByteBuffer head = ByteBuffer.allocate(4 * 5 + teamList.length + startGame.length);
+            head.putInt(MAGIC).putInt(VERSION).putInt(period);
+            head.putInt(teamList.length).put(teamList);
+            head.putInt(startGame.length).put(startGame);
+            head.flip();
+            while (head.hasRemaining()) {
+                data.write(head);
+            }
+            dataSize = data.position();
+            queue.clear();
+            running = true;
+            flushTask = Threads.newThreadService2(this::flush, FLUSH_PERIOD, FLUSH_PERIOD, TimeUnit.MILLISECONDS);
+            Log.clog("[Replay] Recording " + file.getName());
+        } catch (IOException e) {
+            Log.error("[Replay] Start Error", e);
+            close();
+        }
+    }
+
+    /**
+     * Tick线程调用 只入队
+     * @param tick Tick
+     * @param cmd 本Tick广播的按键包
+     */
+    public void tick(int tick, Seq<GameCommand> cmd) {
+        if (!running) {
+            return;
+        }
+        int size = 4 + 4;
+        for (int i = 0; i < cmd.size(); i++) {
+            size += 4 + cmd.get(i).arr.length;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(4 + size);
+        buffer.putInt(size).putInt(tick).putInt(cmd.size());
+        for (int i = 0; i < cmd.size(); i++) {
+            final byte[] arr = cmd.get(i).arr;
+            buffer.putInt(arr.length).put(arr);
+        }
+        if (!queue.offer(buffer.array())) {
+            Log.error("[Replay] Queue overflow, recording stopped");
+            running = false;
+        }
+    }
+
+    /**
+     * 游戏结束 写完剩余记录
+     */
+    public synchronized void end() {
+        if (data == null) {
+            return;
+        }
+        flush();
+        Log.clog("[Replay] Saved " + file.getName());
+        close();
+    }
+
+    private synchronized void flush() {
+        if (data == null) {
+            return;
+        }
+        if (queue.drain(batch) == 0) {
+            return;
+        }
+        try {
+            final ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+            final ByteBuffer offsets = ByteBuffer.allocate(batch.size() * 8);
+            for (int i = 0; i < buffers.length; i++) {
+                final byte[] record = batch.get(i);
+                buffers[i] = ByteBuffer.wrap(record);
+                offsets.putLong(dataSize);
+                dataSize += record.length;
+            }
+            final ByteBuffer last = buffers[buffers.length - 1];
+            while (last.hasRemaining()) {
+                data.write(buffers);
+            }
+            offsets.flip();
+            while (offsets.hasRemaining()) {
+                index.write(offsets);
+            }
+        } catch (IOException e) {
+            Log.error("[Replay] Write Error, recording stopped", e);
+            close();
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private synchronized void close() {
+        running = false;
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        for (FileChannel channel : new FileChannel[] {data, index}) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Log.error("[Replay] Close Error", e);
+                }
+            }
+        }
+        data = null;
+        index = null;
+        queue.clear();
+    }
+
+    /**
+     * 观众视角的队伍列表 位置为第一个空位 (没有空位为 -1)
+     */
+    private static byte[] getTeamList() throws IOException {
+        final AbstractNetPacket packet = Data.game.connectPacket;
+        final TeamDataCache cache = Data.game.teamData;
+        int site = -1;
+        for (int i = 0; i < Data.game.playerData.length; i++) {
+            if (Data.game.playerData[i] == null) {
+                site = i;
+                break;
+            }
+        }
+        synchronized (cache) {
+            cache.update();
+            return toBytes(packet.getTeamListByteBuf(site, cache.getTeamData(packet)));
+        }
+    }
+
+    private static byte[] toBytes(ByteBuf buf) {
+        try {
+            return ByteBufUtil.getBytes(buf);
+        } finally {
+            buf.release();
+        }
+    }
+
+    static File getIndexFile(File dataFile) {
+        final String name = dataFile.getName();
+        return new File(dataFile.getParentFile(), name.substring(0, name.length() - DATA_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+}
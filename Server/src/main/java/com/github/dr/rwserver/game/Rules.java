@@ -1,26 +1,26 @@
 package com.github.dr.rwserver.game;
 
+import com.github.dr.rwserver.core.ex.TickEngine;
 import com.github.dr.rwserver.data.Player;
 import com.github.dr.rwserver.data.global.Data;
-import com.github.dr.rwserver.io.Packet;
 import com.github.dr.rwserver.net.AbstractNetConnect;
 import com.github.dr.rwserver.net.AbstractNetPacket;
 import com.github.dr.rwserver.net.Administration;
 import com.github.dr.rwserver.net.Net;
 import com.github.dr.rwserver.net.netconnectprotocol.GameVersionServer;
+import com.github.dr.rwserver.struct.MpscRing;
 import com.github.dr.rwserver.struct.OrderedMap;
 import com.github.dr.rwserver.struct.Seq;
 import com.github.dr.rwserver.util.encryption.Base64;
 import com.github.dr.rwserver.util.file.FileUtil;
 import com.github.dr.rwserver.util.file.LoadConfig;
 import com.github.dr.rwserver.util.log.Log;
-import com.github.dr.rwserver.util.zip.zip.ZipDecoder;
 
 import java.io.File;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Dr
@@ -53,12 +53,14 @@ public class Rules {
     public boolean sharedControl = false;
     /** 密码 */
     public String passwd;
-    /** 按键包缓存 */
-    public final LinkedBlockingQueue<GameCommand> gameCommandCache = new LinkedBlockingQueue<>();
+    /** 按键包缓存 多个连接写入 仅Tick线程读取 */
+    public final MpscRing<GameCommand> gameCommandCache;
     /** 混战分配 */
     public boolean amTeam = false;
     /** 队伍数据 */
     public volatile Player[] playerData;
+    /** 队伍列表版本与压缩缓存 */
+    public final TeamDataCache teamData = new TeamDataCache();
     /** ？ */
     public Net.NetStartGame natStartGame = null;
     /** 最大发言长度 */
@@ -73,8 +75,14 @@ public class Rules {
     public final boolean ipCheckMultiLanguageSupport;
     /** 重连暂停 */
     public boolean reConnectBreak = false;
-    /** 重连缓存 GameSave */
-    public volatile Packet gameSaveCache = null;
+    /** 重连用的 GameSave 快照 */
+    public final GameSaveService gameSave;
+    /** 按键包日志 */
+    public final CommandJournal journal;
+    /** 对局录像 */
+    public final ReplayRecorder replay;
+    /** 回放服务器模式 未启用为 null */
+    public final ReplayPlayback replayPlayback;
     /** 是否启用重连 */
     public final boolean reConnect;
     /** 是否启用胜负判定 */
@@ -111,7 +119,7 @@ public class Rules {
 
     public ScheduledFuture afk = null;
     public ScheduledFuture gameOver = null;
-    public ScheduledFuture gameTask = null;
+    public TickEngine gameTask = null;
     public ScheduledFuture ping = null;
     public ScheduledFuture team = null;
     public ScheduledFuture winOrLoseCheck = null;
@@ -122,6 +130,7 @@ public class Rules {
     public final OrderedMap<String,GameMaps.MapData> mapsData = new OrderedMap<>(8);
 
     public Rules(LoadConfig config) {
+        gameCommandCache = new MpscRing<>(config.readInt("gameCommandCapacity",1024));
 
         subtitle = config.readString("subtitle","");
 
@@ -150,6 +159,10 @@ public class Rules {
         ipCheckMultiLanguageSupport = config.readBoolean("iPCheckMultiLanguageSupport",false);
 
         reConnect = config.readBoolean("reConnect",false);
+        gameSave = new GameSaveService(config.readInt("reConnectTimeout",30000),config.readInt("reConnectSnapshotAge",0));
+        journal = new CommandJournal(config);
+        replay = new ReplayRecorder(config);
+        replayPlayback = loadReplay(config.readString("replayPlay",""), config.readFloat("replaySpeed",1f));
         winOrLose = config.readBoolean("winOrLose",false);
         winOrLoseTime = config.readInt("winOrLoseTime",30000);
 
@@ -189,7 +202,12 @@ public class Rules {
     }
 
     public void re() {
+        /* 只能由消费者调用: gameTask 已停止 (stop 等待Tick线程退出) 或就在Tick线程内 */
         gameCommandCache.clear();
+        gameSave.clear();
+        journal.end();
+        replay.end();
+        connectPacket.clearStartGameCache();
         Arrays.fill(playerData, null);
         income = Data.core.defIncome;
         initUnit = 1;
@@ -198,10 +216,36 @@ public class Rules {
         System.gc();
     }
 
+    private static ReplayPlayback loadReplay(String name, float speed) {
+        if (name.isEmpty()) {
+            return null;
+        }
+        if (!name.endsWith(".rwr")) {
+            name += ".rwr";
+        }
+        try {
+            final ReplayPlayback playback = new ReplayPlayback(FileUtil.File(Data.Plugin_Data_Path).toPath("replay").toPath(name).getFile(), speed);
+            Log.clog("[Replay] Playback mode: " + name);
+            return playback;
+        } catch (Exception e) {
+            Log.error("[Replay] Load Error", e);
+            return null;
+        }
+    }
+
     public void checkMaps() {
         List<File> list = FileUtil.File(Data.Plugin_Maps_Path).getFileList();
+        /* 压缩包先并行建立索引 */
+        final Seq<File> zips = new Seq<>();
         list.forEach(e -> {
-            final String original = Base64.isBase64(e.getName()) ? Base64.decodeString(e.getName()) : e.getName();
+            if (getOriginalName(e).endsWith(".zip")) {
+                zips.add(e);
+            }
+        });
+        final MapIndex.ZipMaps[] zipMaps = MapIndex.scan(zips);
+        final AtomicInteger zipIndex = new AtomicInteger();
+        list.forEach(e -> {
+            final String original = getOriginalName(e);
             final String postpone = original.substring(original.lastIndexOf("."));
             final String name = original.substring(0, original.length()-postpone.length());
             switch (postpone) {
@@ -220,14 +264,10 @@ public class Rules {
                     }
                     break;
                 case ".zip":
-                    try {
-                        Seq<String> zipTmx = new ZipDecoder(e).GetTheFileNameOfTheSpecifiedSuffixInTheZip("tmx");
-                        zipTmx.each(zipMapName -> mapsData.put(zipMapName,new GameMaps.MapData(GameMaps.MapType.customMap, GameMaps.MapFileType.zip , zipMapName, original)));
-                        Seq<String> zipSave = new ZipDecoder(e).GetTheFileNameOfTheSpecifiedSuffixInTheZip("save");
-                        zipSave.each(zipSaveName -> mapsData.put(zipSaveName,new GameMaps.MapData(GameMaps.MapType.savedGames, GameMaps.MapFileType.zip , zipSaveName, original)));
-
-                    } catch (Exception exception) {
-                        Log.error("ZIP READ",exception);
+                    final MapIndex.ZipMaps zipMap = zipMaps[zipIndex.getAndIncrement()];
+                    if (zipMap != null) {
+                        zipMap.tmx.each(zipMapName -> mapsData.put(zipMapName,new GameMaps.MapData(GameMaps.MapType.customMap, GameMaps.MapFileType.zip , zipMapName, original)));
+                        zipMap.save.each(zipSaveName -> mapsData.put(zipSaveName,new GameMaps.MapData(GameMaps.MapType.savedGames, GameMaps.MapFileType.zip , zipSaveName, original)));
                     }
                     break;
                 default:
@@ -235,4 +275,8 @@ public class Rules {
             }
         });
     }
+
+    private static String getOriginalName(File file) {
+        return Base64.isBase64(file.getName()) ? Base64.decodeString(file.getName()) : file.getName();
+    }
 }
@@ -0,0 +1,134 @@
+package com.github.dr.rwserver.game;
+
+import com.github.dr.rwserver.data.Player;
+import com.github.dr.rwserver.data.global.Data;
+import com.github.dr.rwserver.net.AbstractNetPacket;
+import com.github.dr.rwserver.struct.IntSeq;
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+
+/**
+ * 队伍列表 (PACKET_TEAM_LIST) 的版本与压缩缓存
+ * 每次发送前对队伍列表用到的状态取快照 与上次一致则沿用版本和已压缩的数据
+ * 玩家记录已收到的版本 ({@link Player#teamDataVersion}) 相同则跳过
+ * 延迟每次心跳都会变化 不计入快照: 与已发送的值相差超过 {@link #PING_DELTA} 或超过 {@link #PING_REFRESH} 未更新时才更新版本
+ * 调用者需持有本对象的锁
+ * @author Dr
+ */
+public class TeamDataCache {
+    /** 延迟变化超过该值 (ms) 立即更新 */
+    private static final int PING_DELTA = 50;
+    /** 延迟有变化时最长的更新间隔 (ms) */
+    private static final int PING_REFRESH = 10000;
+
+    private IntSeq state = new IntSeq(64);
+    private IntSeq last = new IntSeq(64);
+    private Player[] players = new Player[0];
+    /** 当前版本发送的延迟 */
+    private int[] pings = new int[0];
+    private long version = 0;
+    private long versionTime = 0;
+    /** 当前版本已压缩的队伍数据 */
+    private ByteBuf teamData = null;
+
+    private long rebuild = 0;
+    private long sent = 0;
+    private long skipped = 0;
+    private long pingUpdate = 0;
+
+    /**
+     * 重新取快照 有变化时版本+1 并丢弃已压缩的数据
+     * @return 当前版本
+     */
+    public long update() {
+        final Rules game = Data.game;
+        final Player[] playerData = game.playerData;
+        final IntSeq state = this.state;
+        state.clear();
+        state.add(game.isStartGame ? 1 : 0, game.maxPlayer, game.mist, game.credits);
+        state.add(game.maxUnit, game.initUnit, Float.floatToIntBits(game.income), game.noNukes ? 1 : 0);
+        state.add(game.sharedControl ? 1 : 0);
+
+        boolean changed = players.length != playerData.length;
+        if (changed) {
+            players = new Player[playerData.length];
+            pings = new int[playerData.length];
+        }
+        final long now = System.currentTimeMillis();
+        final boolean refresh = now - versionTime >= PING_REFRESH;
+        boolean pingChanged = false;
+        for (int i = 0; i < playerData.length; i++) {
+            final Player player = playerData[i];
+            if (players[i] != player) {
+                players[i] = player;
+                changed = true;
+            }
+            if (player != null) {
+                state.add(player.site, player.team);
+                state.add(player.sharedControl ? 1 : 0, player.isAdmin ? 1 : 0);
+                final int ping = player.ping;
+                if (Math.abs(ping - pings[i]) >= PING_DELTA || (refresh && ping != pings[i])) {
+                    pingChanged = true;
+                }
+            }
+        }
+
+        final boolean stateChanged = changed || !state.equals(last);
+        if (stateChanged || pingChanged) {
+            if (stateChanged) {
+                this.state = last;
+                this.last = state;
+            } else {
+                pingUpdate++;
+            }
+            for (int i = 0; i < playerData.length; i++) {
+                pings[i] = playerData[i] == null ? 0 : playerData[i].ping;
+            }
+            version++;
+            versionTime = now;
+            if (teamData != null) {
+                teamData.release();
+                teamData = null;
+            }
+        }
+        return version;
+    }
+
+    /**
+     * 当前版本的压缩数据 仅在版本变化后第一次调用时压缩
+     * @param packet 协议
+     * @return 队伍数据 由本对象持有 只在持有锁时读取
+     * @throws IOException Error
+     */
+    public ByteBuf getTeamData(AbstractNetPacket packet) throws IOException {
+        if (teamData == null) {
+            teamData = packet.getTeamDataByteBuf();
+            rebuild++;
+        }
+        return teamData;
+    }
+
+    /**
+     * 记录一次发送 / 跳过
+     * @param send 是否发送
+     */
+    public void count(boolean send) {
+        if (send) {
+            sent++;
+        } else {
+            skipped++;
+        }
+    }
+
+    public synchronized void resetStats() {
+        rebuild = 0;
+        sent = 0;
+        skipped = 0;
+        pingUpdate = 0;
+    }
+
+    public synchronized String getStats() {
+        return "TeamData: Version: " + version + " / Rebuild: " + rebuild + " / Sent: " + sent + " / Skipped: " + skipped + " / PingUpdate: " + pingUpdate;
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.dr.rwserver.io;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 预编码的字符串 (与 DataOutputStream#writeUTF 相同的 Modified UTF-8 含 2 字节长度前缀)
+ * 不变对象 可跨线程共享 写出时只复制字节 不再逐字符编码
+ * @author Dr
+ */
+public final class EncodedString {
+    /** 驻留上限 超出后整体清空 (玩家名/Key 数量很少 正常不会触发) */
+    private static final int INTERN_MAX = 512;
+    private static final ConcurrentHashMap<String, EncodedString> INTERN = new ConcurrentHashMap<>(64);
+
+    public final String value;
+    final byte[] bytes;
+
+    private EncodedString(String value, byte[] bytes) {
+        this.value = value;
+        this.bytes = bytes;
+    }
+
+    /**
+     * 编码 (不驻留)
+     * @param value 文本
+     * @return EncodedString
+     * @throws UTFDataFormatException 编码后超过 65535 字节
+     */
+    public static EncodedString of(String value) throws UTFDataFormatException {
+        final byte[] bytes = new byte[2 + utfLength(value)];
+        encodeTo(Unpooled.wrappedBuffer(bytes).clear(), value);
+        return new EncodedString(value, bytes);
+    }
+
+    /**
+     * 直接编码写入 (与 DataOutputStream#writeUTF 相同) {@link GameByteBufWriter} 与 {@link #of(String)} 共用
+     * 超长时不写入任何字节
+     * @param out 输出
+     * @param value 文本
+     * @throws UTFDataFormatException 编码后超过 65535 字节
+     */
+    public static void encodeTo(ByteBuf out, String value) throws UTFDataFormatException {
+        final int len = value.length();
+        final int utfLen = utfLength(value);
+        out.ensureWritable(2 + utfLen);
+        out.writeShort(utfLen);
+        if (utfLen == len) {
+            /* 纯 ASCII */
+            for (int i = 0; i < len; i++) {
+                out.writeByte(value.charAt(i));
+            }
+            return;
+        }
+        for (int i = 0; i < len; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80 && c != 0) {
+                out.writeByte(c);
+            } else if (c >= 0x800) {
+                out.writeByte(0xE0 | ((c >> 12) & 0x0F));
+                out.writeByte(0x80 | ((c >> 6) & 0x3F));
+                out.writeByte(0x80 | (c & 0x3F));
+            } else {
+                out.writeByte(0xC0 | ((c >> 6) & 0x1F));
+                out.writeByte(0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private static int utfLength(String value) throws UTFDataFormatException {
+        final int len = value.length();
+        int utfLen = len;
+        for (int i = 0; i < len; i++) {
+            final char c = value.charAt(i);
+            if (c >= 0x80 || c == 0) {
+                utfLen += (c >= 0x800) ? 2 : 1;
+            }
+        }
+        if (utfLen > 65535) {
+            throw new UTFDataFormatException("Encoded string too long: " + utfLen + " bytes");
+        }
+        return utfLen;
+    }
+
+    /**
+     * 取驻留的编码 用于反复出现的短文本 (Key / 玩家名 / SERVER_ID)
+     * 一次性的聊天内容请直接写 String 避免挤占缓存
+     * @param value 文本
+     * @return EncodedString
+     * @throws UTFDataFormatException 编码后超过 65535 字节
+     */
+    public static EncodedString intern(String value) throws UTFDataFormatException {
+        EncodedString result = INTERN.get(value);
+        if (result == null) {
+            result = of(value);
+            if (INTERN.size() >= INTERN_MAX) {
+                INTERN.clear();
+            }
+            INTERN.put(value, result);
+        }
+        return result;
+    }
+
+    /**
+     * 用于常量 (类初始化时) 不会超长
+     * @param value 文本
+     * @return EncodedString
+     */
+    public static EncodedString constant(String value) {
+        try {
+            return of(value);
+        } catch (UTFDataFormatException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * @return 含长度前缀的总字节数
+     */
+    public int size() {
+        return bytes.length;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.write(bytes);
+    }
+}
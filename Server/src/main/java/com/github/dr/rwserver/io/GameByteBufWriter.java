@@ -0,0 +1,242 @@
+package com.github.dr.rwserver.io;
+
+import com.github.dr.rwserver.struct.IntSeq;
+import com.github.dr.rwserver.util.zip.gzip.GzipEncoder;
+import com.github.dr.rwserver.util.zip.gzip.PooledGzipOutputStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+
+/**
+ * 直接写入池化 ByteBuf 的 {@link GameOutputStream}
+ * 先预留 8 字节包头 (长度 + 类型) createPacket 时回填 , 嵌套段同样预留长度后回填 全程不产生临时数组
+ * 输出与 GameOutputStream 逐字节一致
+ * 写入出错时 (如字符串过长) 会释放自身的 ByteBuf 之后不可再使用
+ * @author Dr
+ */
+public class GameByteBufWriter {
+    private static final int HEADER_SIZE = 8;
+    private final ByteBuf buf;
+    private final int start;
+    private final int type;
+    /** 未结束的嵌套段 长度字段的位置 */
+    private final IntSeq sections = new IntSeq(false, 4);
+    /** 未结束的 GZIP 段 */
+    private DataOutputStream gzip = null;
+
+    /**
+     * 使用默认池 (堆内存)
+     * @param type 包类型
+     */
+    public GameByteBufWriter(int type) {
+        this(null, type);
+    }
+
+    /**
+     * @param allocator Channel 的分配器 为 null 时使用默认池 (堆内存)
+     * @param type 包类型
+     */
+    public GameByteBufWriter(ByteBufAllocator allocator, int type) {
+        this.buf = (allocator == null ? PooledByteBufAllocator.DEFAULT : allocator).heapBuffer(64);
+        this.start = buf.writerIndex();
+        this.type = type;
+        buf.writeZero(HEADER_SIZE);
+    }
+
+    /**
+     * 回填包头 返回的 ByteBuf 由调用者负责释放
+     * @return 完整的包
+     */
+    public ByteBuf createPacket() {
+        if (!sections.isEmpty()) {
+            release();
+            throw new IllegalStateException("Unclosed section: " + sections.size);
+        }
+        buf.setInt(start, buf.writerIndex() - start - HEADER_SIZE);
+        buf.setInt(start + 4, type);
+        return buf;
+    }
+
+    /**
+     * 不回填包头 只返回包体 (readerIndex 跳过预留的包头)
+     * 用于缓存一段公共数据 再由 {@link #writeBody(ByteBuf)} 拼入多个包
+     * @return 包体 由调用者负责释放
+     */
+    public ByteBuf createBody() {
+        if (!sections.isEmpty()) {
+            release();
+            throw new IllegalStateException("Unclosed section: " + sections.size);
+        }
+        return buf.skipBytes(HEADER_SIZE);
+    }
+
+    /**
+     * 出错时释放
+     */
+    public void release() {
+        if (gzip != null) {
+            try {
+                gzip.close();
+            } catch (IOException ignored) {
+            }
+            gzip = null;
+        }
+        if (buf.refCnt() > 0) {
+            buf.release();
+        }
+    }
+
+    public void writeByte(int val) {
+        buf.writeByte(val);
+    }
+
+    public void writeBytes(byte[] val) {
+        buf.writeBytes(val);
+    }
+
+    /**
+     * 从另一个 ByteBuf 复制 (推进其 readerIndex)
+     * @param src 来源
+     * @param length 长度
+     */
+    public void writeBytes(ByteBuf src, int length) {
+        buf.writeBytes(src, length);
+    }
+
+    /**
+     * 复制 {@link #createBody()} 的内容 (不改变其 readerIndex 可重复使用)
+     * @param body 包体
+     */
+    public void writeBody(ByteBuf body) {
+        buf.writeBytes(body, body.readerIndex(), body.readableBytes());
+    }
+
+    public void writeBoolean(boolean val) {
+        buf.writeBoolean(val);
+    }
+
+    public void writeInt(int val) {
+        buf.writeInt(val);
+    }
+
+    public void writeShort(short val) {
+        buf.writeShort(val);
+    }
+
+    public void writeFloat(float val) {
+        buf.writeFloat(val);
+    }
+
+    public void writeLong(long val) {
+        buf.writeLong(val);
+    }
+
+    /**
+     * 与 DataOutputStream#writeUTF 相同的 Modified UTF-8
+     * @param val 文本
+     * @throws UTFDataFormatException 编码后超过 65535 字节
+     */
+    public void writeString(String val) throws UTFDataFormatException {
+        try {
+            EncodedString.encodeTo(buf, val);
+        } catch (UTFDataFormatException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * 直接复制预编码的字节
+     * @param val 预编码文本
+     */
+    public void writeString(EncodedString val) {
+        buf.writeBytes(val.bytes);
+    }
+
+    /**
+     * 开始一个 int 长度前缀的嵌套段
+     */
+    public void beginSection() {
+        sections.add(buf.writerIndex());
+        buf.writeInt(0);
+    }
+
+    /**
+     * 开始一个 String(key) + int 长度前缀 的嵌套段 (同 {@link GameOutputStream#createPacket(String)} / 非Gzip的 flushEncodeData)
+     * @param key Key
+     * @throws UTFDataFormatException Key 过长
+     */
+    public void beginSection(String key) throws UTFDataFormatException {
+        writeString(key);
+        beginSection();
+    }
+
+    /**
+     * 同 {@link #beginSection(String)} Key 已预编码
+     * @param key Key
+     */
+    public void beginSection(EncodedString key) {
+        writeString(key);
+        beginSection();
+    }
+
+    /**
+     * 结束最近的嵌套段 回填长度
+     */
+    public void endSection() {
+        final int at = sections.pop();
+        buf.setInt(at, buf.writerIndex() - at - 4);
+    }
+
+    /**
+     * 同 {@link GameOutputStream#flushEncodeData(GzipEncoder)}
+     * @param enc GzipEncoder
+     * @throws IOException Key 过长
+     */
+    public void flushEncodeData(GzipEncoder enc) throws IOException {
+        enc.closeGzip();
+        writeString(EncodedString.intern(enc.str));
+        buf.writeInt(enc.buffer.size());
+        /* 直接写出内部数组 不经 toByteArray */
+        enc.buffer.writeTo(new ByteBufOutputStream(buf));
+    }
+
+    /**
+     * 开始一个 GZIP 段 写入返回的流即直接压缩进本 ByteBuf
+     * 结构同 {@link #flushEncodeData(GzipEncoder)} (Key + 长度 + GZIP 数据) 省去 GzipEncoder 的中间数组
+     * @param key Key
+     * @return 写入 GZIP 段的流 由 {@link #endGzipSection()} 关闭
+     * @throws IOException Key 过长
+     */
+    public DataOutputStream beginGzipSection(String key) throws IOException {
+        if (gzip != null) {
+            release();
+            throw new IllegalStateException("Unclosed gzip section");
+        }
+        beginSection(key);
+        gzip = new DataOutputStream(new BufferedOutputStream(new PooledGzipOutputStream(new ByteBufOutputStream(buf))));
+        return gzip;
+    }
+
+    /**
+     * 结束 GZIP 段 写出尾部并回填长度 Deflater 归还到池
+     * @throws IOException Error
+     */
+    public void endGzipSection() throws IOException {
+        final DataOutputStream stream = gzip;
+        gzip = null;
+        stream.close();
+        endSection();
+    }
+
+    public void flushMapData(int mapSize, byte[] bytes) {
+        buf.writeInt(mapSize);
+        buf.writeBytes(bytes);
+    }
+}
@@ -1,23 +1,40 @@
 package com.github.dr.rwserver.io;
 
 import com.github.dr.rwserver.util.zip.gzip.GzipDecoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * @author Dr
  */
 public class GameInputStream {
-	public final ByteArrayInputStream buffer;
+	public final InputStream buffer;
     public final DataInputStream stream;
 
     public GameInputStream(Packet packet) {
-        this.buffer = new ByteArrayInputStream(packet.bytes);
+        if (packet.isBuf()) {
+            /* 直接读 Decoder 的切片 不再复制到 byte[] */
+            this.buffer = new ByteBufInputStream(packet.buf.duplicate());
+        } else {
+            this.buffer = new ByteArrayInputStream(packet.bytes);
+        }
 		this.stream = new DataInputStream(this.buffer);
     }
 
+    /**
+     * 直接读 ByteBuf (不修改其 readerIndex)
+     * @param buf ByteBuf
+     */
+    public GameInputStream(ByteBuf buf) {
+        this.buffer = new ByteBufInputStream(buf.duplicate());
+        this.stream = new DataInputStream(this.buffer);
+    }
+
     public GameInputStream(byte[] bytes) {
         this.buffer = new ByteArrayInputStream(bytes);
         this.stream = new DataInputStream(this.buffer);
@@ -117,13 +117,17 @@ public class GameOutputStream {
         this.stream.writeUTF(val);
     }
 
+    public void writeString(EncodedString val) throws IOException {
+        val.writeTo(this.stream);
+    }
+
     public void flushData(GameInputStream inp) throws IOException {
         this.writeBytes(inp.buffer.readAllBytes());
     }
 
     public void flushEncodeData(GzipEncoder enc) throws IOException {
         enc.closeGzip();
-        this.writeString(enc.str);
+        this.writeString(EncodedString.intern(enc.str));
         this.writeInt(enc.buffer.size());
         enc.buffer.writeTo(this.stream);
         stream.flush();
@@ -1,24 +1,73 @@
 package com.github.dr.rwserver.io;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.util.ReferenceCountUtil;
+
 import java.util.Arrays;
 
 /**
  * @author Dr
  */
 public class Packet {
+    /** 数组包体 (UDP/插件构造的包) , ByteBuf包时为 null */
     public final byte[] bytes;
+    /** 网络层直接切片的包体 (TCP) , 数组包时为 null */
+    public final ByteBuf buf;
     public final int type;
 
     public Packet(int type,byte[] bytes) {
         this.type = type;
         this.bytes = bytes;
+        this.buf = null;
+    }
+
+    /**
+     * 零拷贝包 持有 Decoder 切出的 retainedSlice
+     * 由 Net 在 typeConnect 结束后 {@link #release()}
+     * @param type Type
+     * @param buf RetainedSlice
+     */
+    public Packet(int type,ByteBuf buf) {
+        this.type = type;
+        this.bytes = null;
+        this.buf = buf;
+    }
+
+    public boolean isBuf() {
+        return buf != null;
+    }
+
+    /**
+     * 获取包体 ByteBuf包会复制一份 热路径请使用 {@link GameInputStream}
+     * @return byte[]
+     */
+    public byte[] getBytes() {
+        if (buf == null) {
+            return bytes;
+        }
+        return ByteBufUtil.getBytes(buf, buf.readerIndex(), buf.readableBytes(), true);
+    }
+
+    /**
+     * 需要跨出 typeConnect 保存的包 (如 GameSave) 必须先转为数组包
+     * @return 数组包
+     */
+    public Packet copy() {
+        return buf == null ? this : new Packet(type,getBytes());
+    }
+
+    public void release() {
+        if (buf != null) {
+            ReferenceCountUtil.release(buf);
+        }
     }
 
     @Override
     public String toString() {
         return "Packet{" +
-                "bytes=" + Arrays.toString(bytes) +
+                "bytes=" + Arrays.toString(getBytes()) +
                 ", type=" + type +
                 '}';
     }
-}
\ No newline at end of file
+}
@@ -3,7 +3,6 @@ package com.github.dr.rwserver.net;
 import com.github.dr.rwserver.data.Player;
 import com.github.dr.rwserver.io.Packet;
 import com.github.dr.rwserver.util.log.Log;
-import com.github.dr.rwserver.util.zip.gzip.GzipEncoder;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
 
@@ -62,6 +61,16 @@ public interface AbstractNetConnect {
      * @return 协议
      */
     String getProtocol();
+    /**
+     * 获取发送积压
+     * @return 未写出的字节数
+     */
+    long getOutboundBacklog();
+    /**
+     * 发送缓冲是否低于高水位
+     * @return 可写
+     */
+    boolean isWritable();
     /**
      * 服务端可支持的版本
      * @return 版本号
@@ -125,9 +134,9 @@ public interface AbstractNetConnect {
     void sendStartGame() throws IOException;
     /**
      * 发送队伍包
-     * @param gzip GzipPacket
+     * @param teamData {@link AbstractNetPacket#getTeamDataByteBuf()} 只读取 不释放
      */
-    void sendTeamData(GzipEncoder gzip);
+    void sendTeamData(ByteBuf teamData);
     /**
      * 获取玩家的信息并注册
      * @param p Packet包
@@ -157,6 +166,12 @@ public interface AbstractNetConnect {
      */
     void sendGameSave(ByteBuf packet);
 
+    /**
+     * 发送已编码的包 (回放等)
+     * @param packet ByteBuf
+     */
+    void sendPacket(ByteBuf packet);
+
     default void reConnect() {
         try {
             sendKick("不支持重连");
@@ -4,7 +4,6 @@ import com.github.dr.rwserver.data.Player;
 import com.github.dr.rwserver.game.GameCommand;
 import com.github.dr.rwserver.io.Packet;
 import com.github.dr.rwserver.struct.Seq;
-import com.github.dr.rwserver.util.zip.gzip.GzipEncoder;
 import io.netty.buffer.ByteBuf;
 
 import java.io.IOException;
@@ -61,11 +60,19 @@ public interface AbstractNetPacket {
      */
     ByteBuf getGameTickCommandsByteBuf(int tick, Seq<GameCommand> cmd) throws IOException;
     /**
-     * 获取队伍包
-     * @return 队伍包
+     * 获取队伍数据 (已压缩的 teams 段) 可拼入多个队伍列表包
+     * @return 队伍数据 由调用者负责释放
      * @throws IOException err
      */
-    GzipEncoder getTeamDataByteBuf() throws IOException;
+    ByteBuf getTeamDataByteBuf() throws IOException;
+    /**
+     * 队伍列表包 (含游戏设置)
+     * @param site 接收者的位置
+     * @param teamData {@link #getTeamDataByteBuf()} 只读取 不释放
+     * @return ByteBuf
+     * @throws IOException err
+     */
+    ByteBuf getTeamListByteBuf(int site, ByteBuf teamData) throws IOException;
     /**
      * 转换GameSave包
      * @param packet packet
@@ -79,4 +86,9 @@ public interface AbstractNetPacket {
      * @throws IOException err
      */
     ByteBuf getStartGameByteBuf() throws IOException;
+    /**
+     * 释放缓存的开始游戏包 (持有地图数据的引用)
+     * 游戏结束 地图数据释放时调用
+     */
+    void clearStartGameCache();
 }
@@ -1,11 +1,14 @@
 package com.github.dr.rwserver.net;
 
+import com.github.dr.rwserver.core.ex.SaveScheduler;
 import com.github.dr.rwserver.core.ex.Threads;
 import com.github.dr.rwserver.data.Player;
+import com.github.dr.rwserver.data.global.Data;
 import com.github.dr.rwserver.data.plugin.PluginData;
 import com.github.dr.rwserver.struct.ObjectMap;
 import com.github.dr.rwserver.struct.Seq;
 import com.github.dr.rwserver.util.Time;
+import com.github.dr.rwserver.util.alone.BlackList;
 
 import static com.github.dr.rwserver.util.Convert.castSeq;
 
@@ -17,11 +20,22 @@ public class Administration {
     private final Seq<ChatFilter> chatFilters = new Seq<>();
     private NetConnectProtocolData netConnectProtocolData = null;
     private NetConnectPacketData netConnectPacketData = null;
+    private final PacketDispatcher packetDispatcher = new PacketDispatcher();
+    /** 依赖 Config.json 在首次开放端口时创建 */
+    private FloodControl floodControl = null;
+    /** 持久化的IP封禁 修改请使用 {@link #banIp(String)} 等方法 以同步到 {@link #ipBlackList} */
     public final Seq<String> bannedIPs;
+    /** 连接时检查的IP黑名单 (bannedIPs 为永久项 + 临时封禁) */
+    public final BlackList ipBlackList = new BlackList();
     public final Seq<String> bannedUUIDs;
     public final Seq<String> whitelist;
     public final Seq<String> playerData;
     public final ObjectMap<String,PlayerInfo> playerDataCache = new ObjectMap<>();
+    /**
+     * 上面的列表请通过本类的方法读写 (持有本对象的锁)
+     * 后台保存在同一把锁内复制 Seq 并发修改不会抛出异常 只会写入数量与内容不一致的记录
+     */
+    private final SaveScheduler.Saver saver;
 
     public Administration(PluginData settings){
         addChatFilter((player, message) -> {
@@ -37,15 +51,26 @@ public class Administration {
             return message;
         });
         bannedIPs = castSeq(settings.getData("bannedIPs",new Seq()),String.class);
+        bannedIPs.each(ip -> ipBlackList.add(ip,BlackList.PERMANENT));
         bannedUUIDs = castSeq(settings.getData("bannedUUIDs",new Seq()),String.class);
         whitelist = castSeq(settings.getData("whitelist",new Seq()),String.class);
         playerData = castSeq(settings.getData("playerData",new Seq()),String.class);
 
-        Threads.addSavePool(() -> {
-            settings.putObject("bannedIPs",bannedIPs);
-            settings.putObject("bannedUUIDs",bannedUUIDs);
-            settings.putObject("whitelist",whitelist);
-            settings.putObject("playerData",playerData);
+        saver = Threads.addSavePool(() -> {
+            final Seq<String> ips;
+            final Seq<String> uuids;
+            final Seq<String> white;
+            final Seq<String> admins;
+            synchronized (this) {
+                ips = new Seq<>(bannedIPs);
+                uuids = new Seq<>(bannedUUIDs);
+                white = new Seq<>(whitelist);
+                admins = new Seq<>(playerData);
+            }
+            settings.putObject("bannedIPs",ips);
+            settings.putObject("bannedUUIDs",uuids);
+            settings.putObject("whitelist",white);
+            settings.putObject("playerData",admins);
         });
     }
 
@@ -70,15 +95,64 @@ public class Administration {
         return current;
     }
 
-    public void addAdmin(String uuid) {
+    /**
+     * 永久封禁IP 支持CIDR
+     * @param ip IP
+     */
+    public synchronized void banIp(String ip) {
+        if (!bannedIPs.contains(ip)) {
+            bannedIPs.add(ip);
+        }
+        ipBlackList.add(ip,BlackList.PERMANENT);
+        saver.markDirty();
+    }
+
+    /**
+     * @param ip IP
+     * @return 是否曾被封禁
+     */
+    public synchronized boolean unBanIp(String ip) {
+        if (!bannedIPs.remove(ip)) {
+            return false;
+        }
+        ipBlackList.remove(ip);
+        saver.markDirty();
+        return true;
+    }
+
+    public synchronized void clearBanIp() {
+        bannedIPs.clear();
+        ipBlackList.clear();
+        saver.markDirty();
+    }
+
+    public synchronized void banUuid(String uuid) {
+        if (!bannedUUIDs.contains(uuid)) {
+            bannedUUIDs.add(uuid);
+        }
+        saver.markDirty();
+    }
+
+    public synchronized void clearBanUuid() {
+        bannedUUIDs.clear();
+        saver.markDirty();
+    }
+
+    public synchronized boolean isBannedUuid(String uuid) {
+        return bannedUUIDs.contains(uuid);
+    }
+
+    public synchronized void addAdmin(String uuid) {
         playerData.add(uuid);
+        saver.markDirty();
     }
 
-    public void removeAdmin(String uuid) {
+    public synchronized void removeAdmin(String uuid) {
         playerData.remove(uuid);
+        saver.markDirty();
     }
 
-    public boolean isAdmin(String uuid) {
+    public synchronized boolean isAdmin(String uuid) {
         return playerData.contains(uuid);
     }
 
@@ -108,6 +182,31 @@ public class Administration {
         return netConnectPacketData;
     }
 
+    /**
+     * 注册或覆盖一个包类型的处理器
+     * @param type PacketType
+     * @param handler 处理器 null为忽略该类型
+     * @return 被覆盖的处理器 可在新处理器中继续调用
+     */
+    public PacketDispatcher.PacketHandler setPacketHandler(int type, PacketDispatcher.PacketHandler handler){
+        return packetDispatcher.setHandler(type,handler);
+    }
+
+    public PacketDispatcher.PacketHandler getPacketHandler(int type){
+        return packetDispatcher.getHandler(type);
+    }
+
+    public PacketDispatcher getPacketDispatcher(){
+        return packetDispatcher;
+    }
+
+    public synchronized FloodControl getFloodControl(){
+        if (floodControl == null) {
+            floodControl = new FloodControl(Data.config);
+        }
+        return floodControl;
+    }
+
     public static class PlayerInfo {
         public final String uuid;
         public long timesKicked = 0;
@@ -0,0 +1,273 @@
+package com.github.dr.rwserver.net;
+
+import com.github.dr.rwserver.io.Packet;
+import com.github.dr.rwserver.util.PacketType;
+import com.github.dr.rwserver.util.file.LoadConfig;
+import com.github.dr.rwserver.util.log.Log;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.github.dr.rwserver.data.global.Data.LINE_SEPARATOR;
+import static com.github.dr.rwserver.util.IsUtil.isBlank;
+import static com.github.dr.rwserver.util.IsUtil.notIsBlank;
+
+/**
+ * 按包类型的令牌桶限流
+ * Config.json:
+ *   floodControl        是否启用
+ *   floodControlDefault 未单独配置的类型 rate:burst:action ("0" 为不限制)
+ *   floodControlRules   type:rate:burst:action,... (action = drop/delay/kick)
+ * @author Dr
+ */
+public class FloodControl {
+    /** 单连接最多延迟的包 超出直接丢弃 */
+    private static final int MAX_PENDING = 64;
+
+    private final Rule[] rules = new Rule[PacketDispatcher.MAX_TYPE];
+    private final AtomicLongArray dropped = new AtomicLongArray(PacketDispatcher.MAX_TYPE);
+    private final AtomicLongArray delayed = new AtomicLongArray(PacketDispatcher.MAX_TYPE);
+    private final AtomicLongArray kicked = new AtomicLongArray(PacketDispatcher.MAX_TYPE);
+    public final boolean enabled;
+
+    public FloodControl(LoadConfig config) {
+        enabled = config.readBoolean("floodControl",true);
+        Rule def = null;
+        try {
+            def = parseRule(config.readString("floodControlDefault","200:400:drop"));
+        } catch (Exception e) {
+            Log.error("FloodControl Default Rule Error", e);
+        }
+        if (def != null) {
+            for (int i = 0; i < rules.length; i++) {
+                rules[i] = def;
+            }
+        }
+        final String list = config.readString("floodControlRules",
+                PacketType.PACKET_ADD_GAMECOMMAND + ":30:60:delay," + PacketType.PACKET_ADD_CHAT + ":3:6:drop");
+        if (notIsBlank(list)) {
+            for (String str : list.split(",")) {
+                final int split = str.indexOf(':');
+                try {
+                    final int type = Integer.parseInt(str.substring(0, split).trim());
+                    rules[type] = parseRule(str.substring(split + 1));
+                } catch (Exception e) {
+                    Log.error("FloodControl Rule Error", str);
+                }
+            }
+        }
+    }
+
+    private static Rule parseRule(String str) {
+        if (isBlank(str)) {
+            return null;
+        }
+        final String[] arr = str.trim().split(":");
+        final double rate = Double.parseDouble(arr[0].trim());
+        if (rate <= 0) {
+            return null;
+        }
+        final double burst = arr.length > 1 ? Double.parseDouble(arr[1].trim()) : rate;
+        final Action action = arr.length > 2 ? Action.valueOf(arr[2].trim().toUpperCase(Locale.ROOT)) : Action.DROP;
+        return new Rule(rate, Math.max(1, burst), action);
+    }
+
+    /**
+     * 每个Channel一个 不可共享
+     * @return Handler
+     */
+    public Handler newHandler() {
+        return new Handler();
+    }
+
+    public void resetStats() {
+        for (int i = 0; i < PacketDispatcher.MAX_TYPE; i++) {
+            dropped.set(i, 0);
+            delayed.set(i, 0);
+            kicked.set(i, 0);
+        }
+    }
+
+    /**
+     * 触发过限流的包类型统计
+     * @return Type / Drop / Delay / Kick
+     */
+    public String getStats() {
+        final StringBuilder sb = new StringBuilder("FloodControl: Type / Drop / Delay / Kick");
+        for (int i = 0; i < PacketDispatcher.MAX_TYPE; i++) {
+            final long d = dropped.get(i);
+            final long w = delayed.get(i);
+            final long k = kicked.get(i);
+            if ((d | w | k) == 0) {
+                continue;
+            }
+            sb.append(LINE_SEPARATOR)
+              .append(i).append(" / ")
+              .append(d).append(" / ")
+              .append(w).append(" / ")
+              .append(k);
+        }
+        return sb.toString();
+    }
+
+    public enum Action {
+        /** 丢弃超出的包 */
+        DROP,
+        /** 排队至有令牌 保持包顺序 */
+        DELAY,
+        /** 断开连接 */
+        KICK
+    }
+
+    private static class Rule {
+        private final double ratePerNanos;
+        private final double burst;
+        private final Action action;
+
+        private Rule(double rate, double burst, Action action) {
+            this.ratePerNanos = rate / TimeUnit.SECONDS.toNanos(1);
+            this.burst = burst;
+            this.action = action;
+        }
+    }
+
+    private static class Bucket {
+        private double tokens;
+        private long last;
+
+        private Bucket(Rule rule, long now) {
+            this.tokens = rule.burst;
+            this.last = now;
+        }
+
+        private boolean tryAcquire(Rule rule, long now) {
+            tokens = Math.min(rule.burst, tokens + (now - last) * rule.ratePerNanos);
+            last = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        }
+
+        private long nanosUntilToken(Rule rule) {
+            return (long) Math.ceil((1 - tokens) / rule.ratePerNanos);
+        }
+    }
+
+    /**
+     * 位于 Decoder 之后 只在 EventLoop 内访问 无需同步
+     */
+    public final class Handler extends ChannelInboundHandlerAdapter {
+        private final Bucket[] buckets = new Bucket[PacketDispatcher.MAX_TYPE];
+        private final ArrayDeque<Packet> pending = new ArrayDeque<>();
+        private boolean drainScheduled = false;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (!(msg instanceof Packet)) {
+                ctx.fireChannelRead(msg);
+                return;
+            }
+            final Packet p = (Packet) msg;
+            if (!pending.isEmpty()) {
+                /* 有包在排队 保持顺序 */
+                enqueue(ctx, p, 0);
+                return;
+            }
+            process(ctx, p, false);
+        }
+
+        /**
+         * @return false 表示该包需继续排队
+         */
+        private boolean process(ChannelHandlerContext ctx, Packet p, boolean queued) {
+            final int type = p.type;
+            final Rule rule = (type < 0 || type >= rules.length) ? null : rules[type];
+            if (rule == null) {
+                ctx.fireChannelRead(p);
+                return true;
+            }
+            final long now = System.nanoTime();
+            Bucket bucket = buckets[type];
+            if (bucket == null) {
+                bucket = buckets[type] = new Bucket(rule, now);
+            }
+            if (bucket.tryAcquire(rule, now)) {
+                ctx.fireChannelRead(p);
+                return true;
+            }
+            switch (rule.action) {
+                case DELAY:
+                    if (!queued) {
+                        delayed.incrementAndGet(type);
+                        enqueue(ctx, p, bucket.nanosUntilToken(rule));
+                    }
+                    return false;
+                case KICK:
+                    kicked.incrementAndGet(type);
+                    p.release();
+                    Log.warn("FloodControl Kick", ctx.channel().remoteAddress() + " Type: " + type);
+                    ctx.close();
+                    return true;
+                case DROP:
+                default:
+                    dropped.incrementAndGet(type);
+                    p.release();
+                    return true;
+            }
+        }
+
+        private void enqueue(ChannelHandlerContext ctx, Packet p, long delayNanos) {
+            if (pending.size() >= MAX_PENDING) {
+                dropped.incrementAndGet(p.type);
+                p.release();
+                return;
+            }
+            pending.add(p);
+            scheduleDrain(ctx, delayNanos);
+        }
+
+        private void scheduleDrain(ChannelHandlerContext ctx, long delayNanos) {
+            if (drainScheduled) {
+                return;
+            }
+            drainScheduled = true;
+            ctx.executor().schedule(() -> drain(ctx), Math.max(delayNanos, 1), TimeUnit.NANOSECONDS);
+        }
+
+        private void drain(ChannelHandlerContext ctx) {
+            drainScheduled = false;
+            if (!ctx.channel().isActive()) {
+                releasePending();
+                return;
+            }
+            Packet p;
+            while ((p = pending.peek()) != null) {
+                if (!process(ctx, p, true)) {
+                    final Bucket bucket = buckets[p.type];
+                    scheduleDrain(ctx, bucket.nanosUntilToken(rules[p.type]));
+                    return;
+                }
+                pending.poll();
+            }
+        }
+
+        private void releasePending() {
+            Packet p;
+            while ((p = pending.poll()) != null) {
+                p.release();
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            releasePending();
+            super.channelInactive(ctx);
+        }
+    }
+}
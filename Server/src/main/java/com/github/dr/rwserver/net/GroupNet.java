@@ -1,11 +1,16 @@
 package com.github.dr.rwserver.net;
 
 import com.github.dr.rwserver.core.ex.Threads;
+import com.github.dr.rwserver.data.Player;
+import com.github.dr.rwserver.func.Boolf;
 import com.github.dr.rwserver.struct.Seq;
 import com.github.dr.rwserver.util.log.Log;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
 import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.ChannelMatcher;
+import io.netty.channel.group.ChannelMatchers;
 import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.GlobalEventExecutor;
@@ -13,12 +18,29 @@ import io.netty.util.concurrent.GlobalEventExecutor;
 import java.io.IOException;
 
 /**
+ * 群发只编码一次 各连接写入 retainedDuplicate (共享同一块内存)
+ * TCP 使用 voidPromise 每个 EventLoop 只 flush 一次
+ * 子组 (队伍/观战/管理员) 以 {@link Player} 过滤 在发送时判定 加入/退出/换队无需额外维护
  * @author Dr
  */
 public class GroupNet {
     private final ChannelGroup CHANNEL_GROUP = new DefaultChannelGroup("ChannelGroups", GlobalEventExecutor.INSTANCE);
     private final Seq<Protocol> PROTOCOL = new Seq<>(8);
 
+    /** 观战 */
+    public static final Boolf<Player> SPECTATOR = p -> p.watch;
+    /** 管理员 */
+    public static final Boolf<Player> ADMIN = p -> p.isAdmin;
+
+    /**
+     * 队伍子组
+     * @param team 队伍序号
+     * @return 过滤
+     */
+    public static Boolf<Player> team(final int team) {
+        return p -> p.team == team;
+    }
+
     public GroupNet(long a) {
     }
     /**
@@ -37,7 +59,16 @@ public class GroupNet {
     }
 
     public void broadcast(Object msg) {
-        broadcast(msg,null);
+        broadcast((ByteBuf) msg, ChannelMatchers.all());
+    }
+
+    /**
+     * 群发可丢弃的消息 (聊天 / 空Tick)
+     * 积压超过高水位的连接直接跳过 下一个Tick会覆盖
+     * @param msg 消息
+     */
+    public void broadcastIfWritable(Object msg) {
+        broadcast((ByteBuf) msg, Channel::isWritable);
     }
 
         /**
@@ -45,23 +76,106 @@ public class GroupNet {
          * @param msg 消息
          */
     public void broadcast(Object msg,final String str) {
-        final ByteBuf byteBuf = ((ByteBuf) msg).copy();
+        broadcast((ByteBuf) msg, ChannelMatchers.all());
+    }
+
+    /**
+     * 群发给子组
+     * @param msg 消息
+     * @param filter 玩家过滤 未完成注册的连接不会收到
+     */
+    public void broadcast(Object msg, final Boolf<Player> filter) {
+        broadcast((ByteBuf) msg, filter, channel -> filter(channel, filter));
+    }
+
+    /**
+     * 群发可丢弃的消息给子组 (聊天)
+     * @param msg 消息
+     * @param filter 玩家过滤
+     */
+    public void broadcastIfWritable(Object msg, final Boolf<Player> filter) {
+        broadcast((ByteBuf) msg, filter, channel -> channel.isWritable() && filter(channel, filter));
+    }
+
+    private static boolean filter(final Channel channel, final Boolf<Player> filter) {
+        final AbstractNetConnect con = channel.attr(Net.NetStartGame.NET_CONNECT).get();
+        return filter(con, filter);
+    }
+
+    private static boolean filter(final AbstractNetConnect con, final Boolf<Player> filter) {
+        final Player player = (con == null) ? null : con.getPlayer();
+        return player != null && filter.get(player);
+    }
+
+    private void broadcast(final ByteBuf msg, final ChannelMatcher matcher) {
+        broadcast(msg, null, matcher);
+    }
+
+    /**
+     * 群发 调用后 msg 的引用归 GroupNet 所有 发送完毕后释放
+     * @param msg 已编码的包
+     * @param filter UDP 过滤 null为全部
+     * @param matcher TCP 过滤
+     */
+    private void broadcast(final ByteBuf msg, final Boolf<Player> filter, final ChannelMatcher matcher) {
+        try {
+            broadcastUdp(msg, filter);
+            broadcastTcp(msg, matcher);
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private void broadcastTcp(final ByteBuf msg, final ChannelMatcher matcher) {
+        /* 玩家数很少 线性去重即可 */
+        final Seq<EventLoop> loops = new Seq<>(false, 4);
+        for (Channel channel : CHANNEL_GROUP) {
+            if (!matcher.matches(channel)) {
+                continue;
+            }
+            channel.write(msg.retainedDuplicate(), channel.voidPromise());
+            final EventLoop loop = channel.eventLoop();
+            if (!loops.contains(loop, true)) {
+                loops.add(loop);
+            }
+        }
+        /* write 任务已先行入队 同一 EventLoop 内按顺序执行 */
+        loops.each(loop -> loop.execute(() -> {
+            for (Channel channel : CHANNEL_GROUP) {
+                if (channel.eventLoop() == loop) {
+                    channel.flush();
+                }
+            }
+        }));
+    }
+
+    private void broadcastUdp(final ByteBuf msg, final Boolf<Player> filter) {
+        if (PROTOCOL.isEmpty()) {
+            return;
+        }
+        final ByteBuf byteBuf = msg.retainedDuplicate();
         Threads.newThreadPlayer2(() -> {
-            PROTOCOL.each(e -> {
-                try {
-                    e.send(byteBuf);
-                } catch (IOException ioException) {
-                    PROTOCOL.remove(e);
+            try {
+                for (int i = PROTOCOL.size() - 1; i >= 0; i--) {
+                    final Protocol e = PROTOCOL.get(i);
+                    if (filter != null && !filter(e.con, filter)) {
+                        continue;
+                    }
                     try {
-                        e.close(this);
-                    } catch (IOException exception) {
-                        Log.error("[Server] UDP GrepNet Error Close", e);
+                        e.send(byteBuf);
+                    } catch (IOException ioException) {
+                        PROTOCOL.remove(i);
+                        try {
+                            e.close(this);
+                        } catch (IOException exception) {
+                            Log.error("[Server] UDP GrepNet Error Close", e);
+                        }
                     }
                 }
-            });
-            ReferenceCountUtil.release(byteBuf);
+            } finally {
+                ReferenceCountUtil.release(byteBuf);
+            }
         });
-        CHANNEL_GROUP.writeAndFlush(msg);
     }
 
     /**
@@ -2,14 +2,11 @@ package com.github.dr.rwserver.net;
 
 import com.github.dr.rwserver.core.Core;
 import com.github.dr.rwserver.core.ex.Threads;
-import com.github.dr.rwserver.data.Player;
 import com.github.dr.rwserver.data.global.Data;
 import com.github.dr.rwserver.io.Packet;
 import com.github.dr.rwserver.net.udp.ReliableServerSocket;
 import com.github.dr.rwserver.net.web.realization.HttpServer;
 import com.github.dr.rwserver.net.web.realization.constant.HttpsSetting;
-import com.github.dr.rwserver.struct.OrderedMap;
-import com.github.dr.rwserver.util.PacketType;
 import com.github.dr.rwserver.util.Time;
 import com.github.dr.rwserver.util.alone.BlackList;
 import com.github.dr.rwserver.util.encryption.Sha;
@@ -18,14 +15,19 @@ import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.ipfilter.AbstractRemoteAddressFilter;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.timeout.IdleStateHandler;
-import io.netty.util.ReferenceCountUtil;
+import io.netty.util.AttributeKey;
 
 import java.io.DataInputStream;
 import java.math.BigInteger;
@@ -36,6 +38,7 @@ import java.net.SocketAddress;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -49,9 +52,20 @@ import static com.github.dr.rwserver.util.IsUtil.notIsBlank;
  */
 public class Net {
 	public static class NetStartGame {
-		private static final OrderedMap<SocketAddress, AbstractNetConnect> OVER_MAP = new OrderedMap<>(16);
+		/** 每个TCP连接的协议实例 挂在Channel上 读包时无需查表 */
+		static final AttributeKey<AbstractNetConnect> NET_CONNECT = AttributeKey.valueOf("NetConnect");
+		/** 仅供管理/查询使用 热路径不访问 */
+		private static final ConcurrentHashMap<SocketAddress, AbstractNetConnect> CONNECT_REGISTRY = new ConcurrentHashMap<>(16);
 		private final AcceptorIdleStateTrigger idleStateTrigger = new AcceptorIdleStateTrigger();
-		private final BlackList blackList = new BlackList();
+		private final BlackList blackList = Data.core.admin.ipBlackList;
+		private final BlackListFilter blackListFilter = new BlackListFilter();
+		private final PacketDispatcher packetDispatcher = Data.core.admin.getPacketDispatcher();
+		private final FloodControl floodControl = Data.core.admin.getFloodControl();
+		/** 持续不可写多久后断开 (ms) / 积压上限 (字节) */
+		private final long slowConsumerGrace = Data.config.readInt("netSlowConsumerGrace",15000);
+		private final long maxBacklog = Data.config.readInt("netMaxBacklog",4 * 1024 * 1024);
+		/** 只读取MOD时不处理任何包 Rules内为final 启动时取一次即可 */
+		private final boolean readUnitListOnly = Data.game.oneReadUnitList;
 
 		public void startGame(int port, String passwd) {
 			if (notIsBlank(passwd)) {
@@ -66,13 +80,16 @@ public class Net {
 							do {
 								final Socket socket = serverSocket.accept();
 								final SocketAddress sockAds = socket.getRemoteSocketAddress();
-								AbstractNetConnect con = OVER_MAP.get(sockAds);
-								if (con == null) {
-									con = Data.game.connectNet.getVersionNet(sockAds,null);
-									OVER_MAP.put(sockAds, con);
-									con.setProtocol(new Protocol(socket));
+								if (sockAds instanceof InetSocketAddress && blackList.contains(((InetSocketAddress) sockAds).getAddress())) {
+									socket.close();
+									continue;
 								}
-								final AbstractNetConnect conFinal = con;
+								/* 与TCP一致 连接建立时创建 由本连接的读线程独占持有 */
+								final AbstractNetConnect conFinal = Data.game.connectNet.getVersionNet(sockAds,null);
+								final Protocol protocol = new Protocol(socket);
+								protocol.con = conFinal;
+								conFinal.setProtocol(protocol);
+								CONNECT_REGISTRY.put(sockAds, conFinal);
 								group.execute(() -> {
 									while (!socket.isClosed()) {
 										try {
@@ -94,7 +111,7 @@ public class Net {
 										}
 									}
 									conFinal.disconnect();
-									OVER_MAP.remove(sockAds);
+									CONNECT_REGISTRY.remove(sockAds, conFinal);
 								});
 							} while (true);
 						} catch (Exception ignored) {
@@ -109,22 +126,55 @@ public class Net {
 		}
 
 		private void openPort(int port) throws InterruptedException {
+			final boolean epoll = Data.config.readBoolean("netEpoll",true) && Epoll.isAvailable();
+			if (!epoll) {
+				Log.clog("Epoll is not available, use NIO");
+			}
+			/* SO_REUSEPORT 仅 Epoll 支持 每个 acceptor 独占一个 boss 线程 由内核分配连接 */
+			final int acceptors = epoll ? Math.max(1, Data.config.readInt("netAcceptors",1)) : 1;
+			final int bossThreads = Math.max(acceptors, Data.config.readInt("netBossThreads",1));
+			/* 0 为 Netty 默认 (CPU * 2) */
+			final int workerThreads = Math.max(0, Data.config.readInt("netWorkerThreads",0));
 			/* boss用来接收进来的连接 */
-			//EpollEventLoopGroup bossGroup = new EpollEventLoopGroup(1);
-			EpollEventLoopGroup bossGroup = new EpollEventLoopGroup(1);
+			final EventLoopGroup bossGroup = epoll ? new EpollEventLoopGroup(bossThreads) : new NioEventLoopGroup(bossThreads);
 			/* workerGroup用来处理已经被接收的连接 */
-			EpollEventLoopGroup workerGroup = new EpollEventLoopGroup();
+			final EventLoopGroup workerGroup = epoll ? new EpollEventLoopGroup(workerThreads) : new NioEventLoopGroup(workerThreads);
 			try {
 				ServerBootstrap serverBootstrapTcp = new ServerBootstrap();
 				serverBootstrapTcp.group(bossGroup, workerGroup)
-								  .channel(EpollServerSocketChannel.class)
+								  .channel(epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
 								  .localAddress(new InetSocketAddress(port))
 								  .childOption(ChannelOption.SO_KEEPALIVE, true)
+								  .childOption(ChannelOption.TCP_NODELAY, Data.config.readBoolean("netTcpNoDelay",true))
 								  .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+								  .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+								  .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+										  Data.config.readInt("netWriteLowWaterMark",32 * 1024),
+										  Data.config.readInt("netWriteHighWaterMark",256 * 1024)))
 								  .childHandler(new StartGameNetTcp());
+				/* 0 为系统默认 */
+				final int rcvBuf = Data.config.readInt("netSoRcvBuf",0);
+				final int sndBuf = Data.config.readInt("netSoSndBuf",0);
+				if (rcvBuf > 0) {
+					serverBootstrapTcp.option(ChannelOption.SO_RCVBUF, rcvBuf).childOption(ChannelOption.SO_RCVBUF, rcvBuf);
+				}
+				if (sndBuf > 0) {
+					serverBootstrapTcp.childOption(ChannelOption.SO_SNDBUF, sndBuf);
+				}
+				if (epoll) {
+					serverBootstrapTcp.childOption(EpollChannelOption.TCP_QUICKACK, Data.config.readBoolean("netTcpQuickAck",true));
+					if (acceptors > 1) {
+						serverBootstrapTcp.option(EpollChannelOption.SO_REUSEPORT, true);
+					}
+				}
 
 				ChannelFuture channelFutureTcp = serverBootstrapTcp.bind(port).sync();
 				Data.serverChannelB = channelFutureTcp.channel();
+				/* 其余 acceptor 随主 Channel 一起关闭 */
+				for (int i = 1; i < acceptors; i++) {
+					final Channel channel = serverBootstrapTcp.bind(port).sync().channel();
+					Data.serverChannelB.closeFuture().addListener(future -> channel.close());
+				}
 				Data.config.setObject("runPid",Data.core.getPid());
 				Data.config.save();
 				Log.clog(Data.localeUtil.getinput("server.start.openPort"));
@@ -149,19 +199,16 @@ public class Net {
 			@Override
 			protected void initChannel(SocketChannel socketChannel) throws Exception {
 				ChannelPipeline pipeline = socketChannel.pipeline();
+				/* 连接时检查一次 之后自行移除 */
+				pipeline.addLast(blackListFilter);
 				pipeline.addLast(new IdleStateHandler(0, 3, 0, TimeUnit.SECONDS));
 				pipeline.addLast(idleStateTrigger);
+				pipeline.addLast(new SlowConsumerHandler(slowConsumerGrace, maxBacklog));
 				pipeline.addLast(new ByteToMessageDecoder() {
 					private static final int HEADER_SIZE = 8;
 
 					@Override
 					protected void decode(ChannelHandlerContext ctx, ByteBuf bufferIn, List<Object> out) throws Exception {
-						final String addSock = ctx.channel().remoteAddress().toString();
-						final String ip = addSock.substring(1, addSock.indexOf(':'));
-						if (blackList.containsBlackList(ip)) {
-							ReferenceCountUtil.release(bufferIn);
-							ctx.close();
-						}
 						if (bufferIn == null) {
 							return;
 						}
@@ -176,7 +223,9 @@ public class Net {
 						final int maxContentLength = 10485760;
 						if (bufferIn.readableBytes() > maxContentLength) {
 							Log.error("MAX Packet");
-							ReferenceCountUtil.release(bufferIn);
+							/* cumulation 由 ByteToMessageDecoder 管理 丢弃即可 */
+							bufferIn.skipBytes(bufferIn.readableBytes());
+							final String ip = ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress().getHostAddress();
 							blackList.addBlackList(ip);
 							Log.warn("BlackList", ip);
 							ctx.close();
@@ -192,16 +241,27 @@ public class Net {
 							bufferIn.readerIndex(begin);
 							return;
 						}
-						byte[] b = new byte[contentLength];
-						bufferIn.readBytes(b);
-						out.add(new Packet(type, b));
+						/* 零拷贝 切片交给 NewServerHandler 处理完后释放 */
+						out.add(new Packet(type, bufferIn.readRetainedSlice(contentLength)));
 					}
 
 					@Override
 					public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
 						ctx.flush();
 					}
-				}).addLast(new NewServerHandler());
+				});
+				if (floodControl.enabled) {
+					pipeline.addLast(floodControl.newHandler());
+				}
+				pipeline.addLast(new NewServerHandler());
+			}
+		}
+
+		@ChannelHandler.Sharable
+		class BlackListFilter extends AbstractRemoteAddressFilter<InetSocketAddress> {
+			@Override
+			protected boolean accept(ChannelHandlerContext ctx, InetSocketAddress remoteAddress) {
+				return !blackList.contains(remoteAddress.getAddress());
 			}
 		}
 
@@ -209,6 +269,13 @@ public class Net {
 		class AcceptorIdleStateTrigger extends ChannelInboundHandlerAdapter {
 			@Override
 			public void channelActive(ChannelHandlerContext ctx) throws Exception {
+				final Channel channel = ctx.channel();
+				final AbstractNetConnect con = Data.game.connectNet.getVersionNet(channel.remoteAddress(),ctx.alloc());
+				final Protocol protocol = new Protocol(channel);
+				protocol.con = con;
+				con.setProtocol(protocol);
+				channel.attr(NET_CONNECT).set(con);
+				CONNECT_REGISTRY.put(channel.remoteAddress(), con);
 				ctx.fireChannelActive();
 			}
 
@@ -223,8 +290,7 @@ public class Net {
 				if (evt instanceof IdleStateEvent) {
 					IdleState state = ((IdleStateEvent) evt).state();
 					if (state == IdleState.WRITER_IDLE) {
-						Channel channel = ctx.channel();
-						AbstractNetConnect con = OVER_MAP.get(channel.remoteAddress());
+						AbstractNetConnect con = ctx.channel().attr(NET_CONNECT).get();
 						if (con == null) {
 							clear(ctx);
 							return;
@@ -252,22 +318,19 @@ public class Net {
 			protected void channelRead0(ChannelHandlerContext ctx, Object msg) throws Exception {
 				if (msg instanceof Packet) {
 					final Packet p = (Packet) msg;
-					final Channel channel = ctx.channel();
-					final SocketAddress sockAds = channel.remoteAddress();
-					AbstractNetConnect con = OVER_MAP.get(sockAds);
-					if (con == null) {
-						con = Data.game.connectNet.getVersionNet(sockAds,ctx.alloc());
-						OVER_MAP.put(sockAds, con);
-						con.setProtocol(new Protocol(channel));
+					final AbstractNetConnect finalCon = ctx.channel().attr(NET_CONNECT).get();
+					if (finalCon == null) {
+						/* 已被clear */
+						p.release();
+						return;
 					}
-					final AbstractNetConnect finalCon = con;
 					ctx.executor().execute(() -> {
 						try {
 							typeConnect(finalCon, p);
 						} catch (Exception e) {
 							clear(ctx);
 						} finally {
-							ReferenceCountUtil.release(msg);
+							p.release();
 						}
 					});
 				}
@@ -294,57 +357,16 @@ public class Net {
 		}
 
 		private void netRwHps(final AbstractNetConnect con,final Packet p) throws Exception {
-			if (!Data.game.oneReadUnitList) {
-				// CPU分支预测
+			if (!readUnitListOnly) {
 				con.setLastReceivedTime(Time.concurrentMillis());
-				if (p.type == PacketType.PACKET_ADD_GAMECOMMAND) {
-					con.receiveCommand(p);
-					con.getPlayer().lastMoveTime = Time.millis();
-				} else {
-					switch (p.type) {
-						// 连接服务器
-						case PacketType.PACKET_PREREGISTER_CONNECTION:
-							con.registerConnection(p);
-							break;
-						// 注册用户
-						case PacketType.PACKET_PLAYER_INFO:
-							if (!con.getPlayerInfo(p)) {
-								con.disconnect();
-							}
-							break;
-						case PacketType.PACKET_HEART_BEAT_RESPONSE:
-							Player player = con.getPlayer();
-							player.ping = (int) (System.currentTimeMillis() - player.timeTemp) >> 1;
-							con.setTryBolean(false);
-							//心跳 懒得处理
-							break;
-						// 玩家发送消息
-						case PacketType.PACKET_ADD_CHAT:
-							con.receiveChat(p);
-							break;
-						// 玩家主动断开连接
-						case PacketType.PACKET_DISCONNECT:
-							con.disconnect();
-							break;
-						case PacketType.PACKET_ACCEPT_START_GAME:
-							con.getPlayer().start = true;
-							break;
-						case PacketType.PACKET_SERVER_DEBUG:
-							con.debug(p);
-							break;
-						case PacketType.PACKET_SYNC:
-							Data.game.gameSaveCache = p;
-							break;
-						default:
-							break;
-					}
-				}
+				packetDispatcher.dispatch(con,p);
 			}
 		}
 
 		private void clear(ChannelHandlerContext ctx) {
 			Channel channel = ctx.channel();
-			AbstractNetConnect con = OVER_MAP.get(channel.remoteAddress());
+			/* getAndSet 保证只断开一次 */
+			AbstractNetConnect con = channel.attr(NET_CONNECT).getAndSet(null);
 			if (con != null) {
 				try {
 					con.disconnect();
@@ -352,8 +374,26 @@ public class Net {
 				} catch (Exception e) {
 					Log.info(e);
 				}
+				if (channel.remoteAddress() != null) {
+					CONNECT_REGISTRY.remove(channel.remoteAddress(), con);
+				}
 			}
-			OVER_MAP.remove(channel.remoteAddress());
+		}
+
+		/**
+		 * 按地址查询连接 仅供管理使用
+		 * @param sockAds SocketAddress
+		 * @return 连接 不存在为null
+		 */
+		public static AbstractNetConnect getConnect(SocketAddress sockAds) {
+			return CONNECT_REGISTRY.get(sockAds);
+		}
+
+		/**
+		 * @return 当前连接数 (含未注册玩家的连接)
+		 */
+		public static int getConnectSize() {
+			return CONNECT_REGISTRY.size();
 		}
 
 		//private void netType()
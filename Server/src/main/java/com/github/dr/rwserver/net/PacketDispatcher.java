@@ -0,0 +1,157 @@
+package com.github.dr.rwserver.net;
+
+import com.github.dr.rwserver.data.Player;
+import com.github.dr.rwserver.data.global.Data;
+import com.github.dr.rwserver.io.Packet;
+import com.github.dr.rwserver.util.PacketType;
+import com.github.dr.rwserver.util.Time;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.github.dr.rwserver.data.global.Data.LINE_SEPARATOR;
+
+/**
+ * 按包类型下标分发的处理表
+ * 核心包在构造时注册 插件通过 {@link Administration#setPacketHandler(int, PacketHandler)} 注册或覆盖
+ * @author Dr
+ */
+public class PacketDispatcher {
+    /** 包类型上限 (PACKET_SERVER_DEBUG = 2000) */
+    public static final int MAX_TYPE = 4096;
+
+    private final PacketHandler[] handlers = new PacketHandler[MAX_TYPE];
+    private final AtomicLongArray count = new AtomicLongArray(MAX_TYPE);
+    private final AtomicLongArray nanos = new AtomicLongArray(MAX_TYPE);
+
+    public PacketDispatcher() {
+        registerCore();
+    }
+
+    private void registerCore() {
+        setHandler(PacketType.PACKET_ADD_GAMECOMMAND, (con, p) -> {
+            con.receiveCommand(p);
+            con.getPlayer().lastMoveTime = Time.millis();
+        });
+        // 连接服务器
+        setHandler(PacketType.PACKET_PREREGISTER_CONNECTION, AbstractNetConnect::registerConnection);
+        // 注册用户
+        setHandler(PacketType.PACKET_PLAYER_INFO, (con, p) -> {
+            if (!con.getPlayerInfo(p)) {
+                con.disconnect();
+            }
+        });
+        setHandler(PacketType.PACKET_HEART_BEAT_RESPONSE, (con, p) -> {
+            Player player = con.getPlayer();
+            player.ping = (int) (System.currentTimeMillis() - player.timeTemp) >> 1;
+            con.setTryBolean(false);
+        });
+        // 玩家发送消息
+        setHandler(PacketType.PACKET_ADD_CHAT, AbstractNetConnect::receiveChat);
+        // 玩家主动断开连接
+        setHandler(PacketType.PACKET_DISCONNECT, (con, p) -> con.disconnect());
+        setHandler(PacketType.PACKET_ACCEPT_START_GAME, (con, p) -> con.getPlayer().start = true);
+        setHandler(PacketType.PACKET_SERVER_DEBUG, AbstractNetConnect::debug);
+        /* 切片在 typeConnect 后释放 需要复制一份 */
+        setHandler(PacketType.PACKET_SYNC, (con, p) -> {
+            final Packet save = p.copy();
+            Data.game.journal.checkpoint(con.getPlayer(), save);
+            Data.game.gameSave.complete(save);
+        });
+    }
+
+    /**
+     * 设置处理器 返回被覆盖的处理器 (可用于包装原逻辑)
+     * @param type 包类型
+     * @param handler 处理器 null为忽略该包
+     * @return 原处理器
+     */
+    public PacketHandler setHandler(int type, PacketHandler handler) {
+        checkType(type);
+        final PacketHandler old = handlers[type];
+        handlers[type] = handler;
+        return old;
+    }
+
+    public PacketHandler getHandler(int type) {
+        checkType(type);
+        return handlers[type];
+    }
+
+    /**
+     * 分发一个包 未注册或越界的类型直接忽略
+     * @param con 连接
+     * @param p 包
+     * @throws Exception 处理器抛出的错误
+     */
+    public void dispatch(final AbstractNetConnect con, final Packet p) throws Exception {
+        final int type = p.type;
+        if (type < 0 || type >= MAX_TYPE) {
+            return;
+        }
+        final PacketHandler handler = handlers[type];
+        if (handler == null) {
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            handler.handle(con, p);
+        } finally {
+            count.incrementAndGet(type);
+            nanos.addAndGet(type, System.nanoTime() - start);
+        }
+    }
+
+    public long getCount(int type) {
+        checkType(type);
+        return count.get(type);
+    }
+
+    public long getNanos(int type) {
+        checkType(type);
+        return nanos.get(type);
+    }
+
+    public void resetStats() {
+        for (int i = 0; i < MAX_TYPE; i++) {
+            count.set(i, 0);
+            nanos.set(i, 0);
+        }
+    }
+
+    /**
+     * 有流量的包类型统计
+     * @return Type / Count / Total ms / Avg us
+     */
+    public String getStats() {
+        final StringBuilder sb = new StringBuilder("Type / Count / Total(ms) / Avg(us)");
+        for (int i = 0; i < MAX_TYPE; i++) {
+            final long c = count.get(i);
+            if (c == 0) {
+                continue;
+            }
+            final long n = nanos.get(i);
+            sb.append(LINE_SEPARATOR)
+              .append(i).append(" / ")
+              .append(c).append(" / ")
+              .append(n / 1000000L).append(" / ")
+              .append(n / c / 1000L);
+        }
+        return sb.toString();
+    }
+
+    private static void checkType(int type) {
+        if (type < 0 || type >= MAX_TYPE) {
+            throw new IllegalArgumentException("Packet type out of range: " + type);
+        }
+    }
+
+    public interface PacketHandler {
+        /**
+         * 处理一个包
+         * @param con 连接
+         * @param packet 包 (ByteBuf包在返回后即被释放 需要保存请 {@link Packet#copy()})
+         * @throws Exception Error
+         */
+        void handle(AbstractNetConnect con, Packet packet) throws Exception;
+    }
+}
@@ -21,6 +21,8 @@ public class Protocol {
     public final String useAgreement;
     private final OutputStream socketStream;
     public final String id;
+    /** 所属连接 供 GroupNet 按玩家过滤 */
+    volatile AbstractNetConnect con = null;
 
     /**
      * TCP Send
@@ -42,7 +44,8 @@ public class Protocol {
     public Protocol(Socket socket) throws IOException {
         socketStream = socket.getOutputStream();
         protocolType = (msg) -> {
-            socketStream.write(msg.array());
+            /* 不消费 readerIndex 同一 duplicate 可发给多个连接 */
+            msg.getBytes(msg.readerIndex(), socketStream, msg.readableBytes());
             socketStream.flush();
         };
         object = socket;
@@ -62,6 +65,22 @@ public class Protocol {
         protocolType.send(byteBuf);
     }
 
+    /**
+     * UDP 无法获取 返回0
+     * @return 未写出的字节数
+     */
+    public long getOutboundBacklog() {
+        return object instanceof Channel ? SlowConsumerHandler.getBacklog((Channel) object) : 0;
+    }
+
+    /**
+     * UDP 无法获取 返回true
+     * @return 是否低于高水位
+     */
+    public boolean isWritable() {
+        return !(object instanceof Channel) || ((Channel) object).isWritable();
+    }
+
     public void close(final GroupNet groupNet) throws IOException {
         if (groupNet != null) {
             if (object instanceof Channel) {
@@ -0,0 +1,89 @@
+package com.github.dr.rwserver.net;
+
+import com.github.dr.rwserver.util.log.Log;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 慢连接处理
+ * 超过 高水位 后 Channel 不可写 , 群发时聊天/空Tick 直接跳过 ({@link GroupNet#broadcastIfWritable(Object)})
+ * 持续不可写超过 grace 或积压超过 maxBacklog 时断开
+ * 每个Channel一个 不可共享
+ * @author Dr
+ */
+public class SlowConsumerHandler extends ChannelDuplexHandler {
+    private final long graceMillis;
+    private final long maxBacklog;
+    private ScheduledFuture<?> evictFuture = null;
+
+    /**
+     * @param graceMillis 持续不可写多久后断开 (ms)
+     * @param maxBacklog 积压上限 (字节) 超出立即断开
+     */
+    public SlowConsumerHandler(long graceMillis, long maxBacklog) {
+        this.graceMillis = graceMillis;
+        this.maxBacklog = maxBacklog;
+    }
+
+    /**
+     * @param channel Channel
+     * @return 尚未写出的字节数
+     */
+    public static long getBacklog(Channel channel) {
+        final ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+        return buffer == null ? 0 : buffer.totalPendingWriteBytes();
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (!ctx.channel().isWritable() && getBacklog(ctx.channel()) > maxBacklog) {
+            ReferenceCountUtil.release(msg);
+            promise.setFailure(new IllegalStateException("Outbound backlog exceeded"));
+            evict(ctx, "Backlog");
+            return;
+        }
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            cancel();
+        } else if (evictFuture == null) {
+            evictFuture = ctx.executor().schedule(() -> {
+                evictFuture = null;
+                if (!ctx.channel().isWritable()) {
+                    evict(ctx, "Grace");
+                }
+            }, graceMillis, TimeUnit.MILLISECONDS);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        cancel();
+        ctx.fireChannelInactive();
+    }
+
+    private void cancel() {
+        if (evictFuture != null) {
+            evictFuture.cancel(false);
+            evictFuture = null;
+        }
+    }
+
+    private void evict(ChannelHandlerContext ctx, String reason) {
+        if (ctx.channel().isActive()) {
+            Log.warn("Slow Consumer " + reason, ctx.channel().remoteAddress() + " Backlog: " + getBacklog(ctx.channel()));
+            ctx.close();
+        }
+    }
+}
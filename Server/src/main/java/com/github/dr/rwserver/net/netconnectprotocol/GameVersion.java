@@ -7,9 +7,9 @@ import com.github.dr.rwserver.net.AbstractNetConnect;
 import com.github.dr.rwserver.net.GroupNet;
 import com.github.dr.rwserver.net.Protocol;
 import com.github.dr.rwserver.util.log.Log;
-import com.github.dr.rwserver.util.zip.gzip.GzipEncoder;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.ReferenceCountUtil;
 
 import java.io.IOException;
 
@@ -62,6 +62,16 @@ public abstract class GameVersion implements AbstractNetConnect {
         return protocol.useAgreement;
     }
 
+    @Override
+    public long getOutboundBacklog() {
+        return protocol == null ? 0 : protocol.getOutboundBacklog();
+    }
+
+    @Override
+    public boolean isWritable() {
+        return protocol == null || protocol.isWritable();
+    }
+
     @Override
     public String getVersion() {
         return "1.14";
@@ -130,7 +140,7 @@ public abstract class GameVersion implements AbstractNetConnect {
     }
 
     @Override
-    public void sendTeamData(GzipEncoder gzip) {
+    public void sendTeamData(ByteBuf teamData) {
 
     }
 
@@ -168,15 +178,21 @@ public abstract class GameVersion implements AbstractNetConnect {
     }
 
     /**
-     * 发送包
+     * 发送包 TCP 由 Netty 写出后释放 UDP 复制到 Socket 后在此释放
      * @param bb 数据
      */
-    protected void sendPacket(ByteBuf bb) {
+    @Override
+    public void sendPacket(ByteBuf bb) {
+        final boolean udp = "UDP".equals(protocol.useAgreement);
         try {
             protocol.send(bb);
         } catch (Exception e) {
             Log.error("[UDP] SendError - 本消息单独出现无妨 连续多次出现请debug",e);
             disconnect();
+        } finally {
+            if (udp) {
+                ReferenceCountUtil.release(bb);
+            }
         }
     }
 }
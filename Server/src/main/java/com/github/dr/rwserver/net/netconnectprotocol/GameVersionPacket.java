@@ -4,124 +4,200 @@ import com.github.dr.rwserver.data.Player;
 import com.github.dr.rwserver.data.global.Data;
 import com.github.dr.rwserver.game.GameCommand;
 import com.github.dr.rwserver.game.GameMaps;
-import com.github.dr.rwserver.io.GameInputStream;
-import com.github.dr.rwserver.io.GameOutputStream;
+import com.github.dr.rwserver.io.EncodedString;
+import com.github.dr.rwserver.io.GameByteBufWriter;
 import com.github.dr.rwserver.io.Packet;
 import com.github.dr.rwserver.net.AbstractNetPacket;
 import com.github.dr.rwserver.struct.Seq;
 import com.github.dr.rwserver.util.PacketType;
 import com.github.dr.rwserver.util.log.Log;
-import com.github.dr.rwserver.util.zip.gzip.GzipEncoder;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 /**
+ * 全部直接编码进池化 ByteBuf ({@link GameByteBufWriter}) 输出与原 GameOutputStream 一致
  * @author Dr
  */
 public class GameVersionPacket implements AbstractNetPacket {
+    /** 固定文本预编码 */
+    private static final EncodedString SERVER = EncodedString.constant("SERVER");
+    private static final EncodedString COMMAND_KEY = EncodedString.constant("c");
+    private static final EncodedString GAME_SAVE = EncodedString.constant("gameSave");
+
+    /** 自定义地图的开始游戏包 地图数据不复制 (CompositeByteBuf) 所有玩家共用 (retainedDuplicate) */
+    private ByteBuf startGame = null;
+    private ByteBuf startGamePayload = null;
+    private GameMaps.MapType startGameType = null;
+    private String startGameName = null;
+
     @Override
     public ByteBuf getSystemMessageByteBuf(String msg) throws IOException {
-        return getChatMessageByteBuf(msg,"SERVER",5);
+        return getChatMessageByteBuf(msg,SERVER,5);
     }
 
     @Override
     public ByteBuf getChatMessageByteBuf(String msg, String sendBy, int team) throws IOException {
-        GameOutputStream o = new GameOutputStream();
+        /* 发送者 (玩家名) 反复出现 走驻留缓存 */
+        return getChatMessageByteBuf(msg,EncodedString.intern(sendBy),team);
+    }
+
+    private ByteBuf getChatMessageByteBuf(String msg, EncodedString sendBy, int team) throws IOException {
+        GameByteBufWriter o = new GameByteBufWriter(PacketType.PACKET_SEND_CHAT);
         o.writeString(msg);
         o.writeByte(3);
         o.writeBoolean(true);
         o.writeString(sendBy);
         o.writeInt(team);
         o.writeInt(team);
-        return o.createPacket(PacketType.PACKET_SEND_CHAT);
+        return o.createPacket();
     }
 
     @Override
     public ByteBuf getPingByteBuf(Player player) throws IOException {
         player.timeTemp = System.currentTimeMillis();
-        GameOutputStream o = new GameOutputStream();
+        GameByteBufWriter o = new GameByteBufWriter(PacketType.PACKET_HEART_BEAT);
         o.writeLong(1000L);
         o.writeByte(0);
-        return o.createPacket(PacketType.PACKET_HEART_BEAT);
+        return o.createPacket();
     }
 
     @Override
     public ByteBuf getTickByteBuf(int tick) throws IOException {
-        GameOutputStream o = new GameOutputStream();
+        GameByteBufWriter o = new GameByteBufWriter(PacketType.PACKET_TICK);
         o.writeInt(tick);
         o.writeInt(0);
-        return o.createPacket(PacketType.PACKET_TICK);
+        return o.createPacket();
     }
 
     @Override
     public ByteBuf getGameTickCommandByteBuf(int tick, GameCommand cmd) throws IOException {
-        GameOutputStream o = new GameOutputStream();
+        GameByteBufWriter o = new GameByteBufWriter(PacketType.PACKET_TICK);
         o.writeInt(tick);
         o.writeInt(1);
-        GzipEncoder enc = GzipEncoder.getGzipStream("c", false);
-        enc.stream.write(cmd.arr);
-        o.flushEncodeData(enc);
-        return o.createPacket(10);
+        o.beginSection(COMMAND_KEY);
+        o.writeBytes(cmd.arr);
+        o.endSection();
+        return o.createPacket();
     }
 
     @Override
     public ByteBuf getGameTickCommandsByteBuf(int tick, Seq<GameCommand> cmd) throws IOException {
-        GameOutputStream o = new GameOutputStream();
+        GameByteBufWriter o = new GameByteBufWriter(PacketType.PACKET_TICK);
         o.writeInt(tick);
         o.writeInt(cmd.size());
         for (GameCommand c : cmd) {
-            GzipEncoder enc = GzipEncoder.getGzipStream("c", false);
-            enc.stream.write(c.arr);
-            o.flushEncodeData(enc);
+            o.beginSection(COMMAND_KEY);
+            o.writeBytes(c.arr);
+            o.endSection();
         }
-        return o.createPacket(10);
+        return o.createPacket();
     }
 
 
     @Override
-    public GzipEncoder getTeamDataByteBuf() throws IOException {
-        GzipEncoder enc = GzipEncoder.getGzipStream("teams",true);
-        for (int i = 0; i < Data.game.maxPlayer; i++) {
-            try {
-                Player player = Data.game.playerData[i];
-                if (player == null) {
-                    enc.stream.writeBoolean(false);
-                } else {
-                    enc.stream.writeBoolean(true);
-                    enc.stream.writeInt(0);
-                    player.writePlayer(enc.stream);
+    public ByteBuf getTeamDataByteBuf() throws IOException {
+        /* 直接压缩进 ByteBuf 不经 GzipEncoder 的中间数组 */
+        GameByteBufWriter o = new GameByteBufWriter(PacketType.PACKET_TEAM_LIST);
+        try {
+            DataOutputStream stream = o.beginGzipSection("teams");
+            for (int i = 0; i < Data.game.maxPlayer; i++) {
+                try {
+                    Player player = Data.game.playerData[i];
+                    if (player == null) {
+                        stream.writeBoolean(false);
+                    } else {
+                        stream.writeBoolean(true);
+                        stream.writeInt(0);
+                        player.writePlayer(stream);
+                    }
+                } catch (Exception e) {
+                    Log.error("[ALL/Player] Get Server Team Info",e);
                 }
-            } catch (Exception e) {
-                Log.error("[ALL/Player] Get Server Team Info",e);
             }
+            o.endGzipSection();
+        } catch (IOException e) {
+            o.release();
+            throw e;
         }
-        return enc;
+        return o.createBody();
     }
 
     @Override
-    public ByteBuf convertGameSaveDataByteBuf(Packet packet) throws IOException {
-        GameInputStream stream = new GameInputStream(packet);
-        GameOutputStream o = new GameOutputStream();
-        o.writeByte(stream.readByte());
-        o.writeInt(stream.readInt());
-        o.writeInt(stream.readInt());
-        o.writeFloat(stream.readFloat());
-        o.writeFloat(stream.readFloat());
+    public ByteBuf getTeamListByteBuf(int site, ByteBuf teamData) throws IOException {
+        GameByteBufWriter o = new GameByteBufWriter(PacketType.PACKET_TEAM_LIST);
+        /* 玩家位置 */
+        o.writeInt(site);
+        o.writeBoolean(Data.game.isStartGame);
+
+        /* 最大玩家 */
+        o.writeInt(Data.game.maxPlayer);
+        o.writeBody(teamData);
+        /* 迷雾 */
+        o.writeInt(Data.game.mist);
+        o.writeInt(Data.game.credits);
+        o.writeBoolean(true);
+        /* AI Difficulty ?*/
+        o.writeInt(1);
+
+        o.writeByte(5);
+
+        o.writeInt(Data.game.maxUnit);
+        o.writeInt(Data.game.maxUnit);
+        /* 初始单位 */
+        o.writeInt(Data.game.initUnit);
+        /* 倍速 */
+        o.writeFloat(Data.game.income);
+        /* NO Nukes */
+        o.writeBoolean(Data.game.noNukes);
+        o.writeBoolean(false);
         o.writeBoolean(false);
+        /* 共享控制 */
+        o.writeBoolean(Data.game.sharedControl);
+        /* 游戏暂停 */
         o.writeBoolean(false);
-        stream.readBoolean();
-        stream.readBoolean();
-        stream.readString();
-        byte[] bytes = stream.readStreamBytes();
-        o.writeString("gameSave");
-        o.flushMapData(bytes.length,bytes);
-        return o.createPacket(35);
+        return o.createPacket();
+    }
+
+    @Override
+    public ByteBuf convertGameSaveDataByteBuf(Packet packet) throws IOException {
+        /* 直接读包体 存档数据从原 ByteBuf 复制到新包 不经中间数组 */
+        final ByteBuf in = packet.isBuf() ? packet.buf.duplicate() : Unpooled.wrappedBuffer(packet.bytes);
+        GameByteBufWriter o = new GameByteBufWriter(PacketType.PACKET_SYNC);
+        try {
+            o.writeByte(in.readByte());
+            o.writeInt(in.readInt());
+            o.writeInt(in.readInt());
+            o.writeFloat(in.readFloat());
+            o.writeFloat(in.readFloat());
+            o.writeBoolean(false);
+            o.writeBoolean(false);
+            in.skipBytes(2);
+            in.skipBytes(in.readUnsignedShort());
+            final int size = in.readInt();
+            o.writeString(GAME_SAVE);
+            o.writeInt(size);
+            o.writeBytes(in, size);
+        } catch (IndexOutOfBoundsException e) {
+            o.release();
+            throw new IOException("GameSave Error", e);
+        }
+        return o.createPacket();
     }
 
     @Override
     public ByteBuf getStartGameByteBuf() throws IOException {
-        GameOutputStream o = new GameOutputStream();
+        final GameMaps.MapType mapType = Data.game.maps.mapType;
+        if (mapType != GameMaps.MapType.defaultMap) {
+            final ByteBuf payload = Data.game.maps.mapData.getPayload();
+            if (payload != null) {
+                return getStartGameByteBuf(payload, mapType, Data.game.maps.mapName);
+            }
+        }
+        GameByteBufWriter o = new GameByteBufWriter(PacketType.PACKET_START_GAME);
         o.writeByte(0);
         // 0->本地 1->自定义 2->保存的游戏
         o.writeInt(Data.game.maps.mapType.ordinal());
@@ -132,6 +208,46 @@ public class GameVersionPacket implements AbstractNetPacket {
             o.writeString("SAVE:" + Data.game.maps.mapName + ".tmx");
         }
         o.writeBoolean(false);
-        return o.createPacket(PacketType.PACKET_START_GAME);
+        return o.createPacket();
+    }
+
+    @Override
+    public synchronized void clearStartGameCache() {
+        if (startGame != null) {
+            startGame.release();
+            startGame = null;
+        }
+        startGamePayload = null;
+        startGameType = null;
+        startGameName = null;
+    }
+
+    /**
+     * 地图或地图名变化时重新组包 包头 + 地图数据 + 包尾
+     */
+    private synchronized ByteBuf getStartGameByteBuf(ByteBuf payload, GameMaps.MapType mapType, String mapName) throws IOException {
+        if (startGame == null || startGamePayload != payload || startGameType != mapType || !mapName.equals(startGameName)) {
+            final ByteBuf tail = Unpooled.buffer(mapName.length() + 16);
+            EncodedString.of("SAVE:" + mapName + ".tmx").writeTo(new ByteBufOutputStream(tail));
+            tail.writeBoolean(false);
+
+            final int mapSize = payload.readableBytes();
+            final ByteBuf head = Unpooled.buffer(17, 17);
+            head.writeInt(1 + 4 + 4 + mapSize + tail.readableBytes());
+            head.writeInt(PacketType.PACKET_START_GAME);
+            head.writeByte(0);
+            // 0->本地 1->自定义 2->保存的游戏
+            head.writeInt(mapType.ordinal());
+            head.writeInt(mapSize);
+
+            if (startGame != null) {
+                startGame.release();
+            }
+            startGame = Unpooled.wrappedBuffer(head, payload.retainedDuplicate(), tail);
+            startGamePayload = payload;
+            startGameType = mapType;
+            startGameName = mapName;
+        }
+        return startGame.retainedDuplicate();
     }
 }
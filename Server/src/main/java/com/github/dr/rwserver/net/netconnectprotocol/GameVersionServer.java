@@ -7,6 +7,8 @@ import com.github.dr.rwserver.data.global.Data;
 import com.github.dr.rwserver.data.global.Static;
 import com.github.dr.rwserver.game.EventType;
 import com.github.dr.rwserver.game.GameCommand;
+import com.github.dr.rwserver.game.GameSaveService;
+import com.github.dr.rwserver.io.EncodedString;
 import com.github.dr.rwserver.io.GameInputStream;
 import com.github.dr.rwserver.io.GameOutputStream;
 import com.github.dr.rwserver.io.Packet;
@@ -21,18 +23,14 @@ import com.github.dr.rwserver.util.zip.gzip.GzipEncoder;
 import com.ip2location.IPResult;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import io.netty.util.ReferenceCountUtil;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.SocketAddress;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReentrantLock;
 
 import static com.github.dr.rwserver.util.ExtractUtil.hexToByteArray;
 import static com.github.dr.rwserver.util.IsUtil.isBlank;
@@ -45,13 +43,13 @@ import static com.github.dr.rwserver.util.encryption.Game.connectKey;
  * @date 2020/9/5 17:02:33
  */
 public class GameVersionServer extends GameVersion {
+    private static final EncodedString SERVER_ID = EncodedString.constant(Data.SERVER_ID);
 
     private SocketAddress sockAds;
     private String playerConnectKey;
     private long time = 0;
     private boolean isDis = false;
 
-    private final ReentrantLock sync = new ReentrantLock(true);
 
     public GameVersionServer(SocketAddress sockAds, ByteBufAllocator bufAllocator) {
         this.sockAds = sockAds;
@@ -93,11 +91,11 @@ public class GameVersionServer extends GameVersion {
     @Override
     public void sendServerInfo(boolean utilData) throws IOException {
         GameOutputStream o = new GameOutputStream(bufAllocator);
-        o.writeString(Data.SERVER_ID);
+        o.writeString(SERVER_ID);
         o.writeInt(Data.game.version);
         /* 地图 */
         o.writeInt(Data.game.maps.mapType.ordinal());
-        o.writeString(Data.game.maps.mapPlayer + Data.game.maps.mapName);
+        o.writeString(Data.game.maps.getEncodedMapName());
         o.writeInt(Data.game.credits);
         o.writeInt(Data.game.mist);
         o.writeBoolean(true);
@@ -207,99 +205,201 @@ public class GameVersionServer extends GameVersion {
 
     @Override
     public void receiveCommand(Packet p) throws IOException {
-        sync.lock();
+        /* 只在本连接的读线程调用 gameCommandCache 为MPSC 无需加锁 */
         try {
-            byte[] bytes;
-            //if (Data.game.sharedControl) {
-            GameInputStream in = new GameInputStream(new GameInputStream(p).getDecodeBytes());
-            GameOutputStream o = new GameOutputStream(bufAllocator);
-            o.writeByte(in.readByte());
-            final boolean boolean1 = in.readBoolean();
-            o.writeBoolean(boolean1);
-            if (boolean1) {
-                o.writeInt(in.readInt());
-                final int int1 = in.readInt();
-                o.writeInt(int1);
+            final ByteBuf buf = p.isBuf() ? p.buf : Unpooled.wrappedBuffer(p.bytes);
+            byte[] bytes = patchSharedControl(buf, (short) Data.game.sharedControlPlayer);
+            if (bytes == null) {
+                bytes = reEncodeCommand(p, bufAllocator, (short) Data.game.sharedControlPlayer);
+            }
+            Data.game.gameCommandCache.offer(new GameCommand(player.site, bytes));
+        } catch (Exception e) {
+            Log.error(e);
+        }
+    }
+
+    /**
+     * 快速路径: 按命令布局跳过字段 (不解码) 只复制一次命令体 并原地改写 sharedControl
+     * @param buf 包体 (不修改 readerIndex)
+     * @param sharedControl 共享控制
+     * @return 命令体 布局不符时为 null 交由 {@link #reEncodeCommand(Packet, ByteBufAllocator, short)}
+     */
+    static byte[] patchSharedControl(final ByteBuf buf, final short sharedControl) {
+        try {
+            final int end = buf.writerIndex();
+            /* 外层: String(key) + int(len) + bytes */
+            long i = buf.readerIndex();
+            i += 2 + buf.getUnsignedShort((int) i);
+            final int len = buf.getInt((int) i);
+            i += 4;
+            if (len < 0 || i + len > end) {
+                return null;
+            }
+            final int start = (int) i;
+            final long cmdEnd = start + (long) len;
+            /* 与 reEncodeCommand 的读取顺序一致 */
+            i += 1;
+            if (buf.getBoolean((int) i++)) {
+                i += 4;
+                final int int1 = buf.getInt((int) i);
+                i += 4;
                 if (int1 == -2) {
-                    o.writeString(in.readString());
+                    i += 2 + buf.getUnsignedShort((int) i);
+                }
+                i += 28;
+                if (buf.getBoolean((int) i++)) {
+                    i += 2 + buf.getUnsignedShort((int) i);
                 }
-                o.writeBytes(in.stream.readNBytes(28));
-                /*
-                o.writeFloat(in.readFloat());
-                o.writeFloat(in.readFloat());
-                o.writeLong(in.readLong());
-                o.writeByte(in.readByte());
-                o.writeFloat(in.readFloat());
-                o.writeFloat(in.readFloat());
-                o.writeBoolean(in.readBoolean());
-                o.writeBoolean(in.readBoolean());
-                o.writeBoolean(in.readBoolean());
-                */
-                final boolean boolean2 = in.readBoolean();
-                o.writeBoolean(boolean2);
-                if (boolean2) {
-                    o.writeString(in.readString());
+            }
+            i += 10;
+            if (buf.getBoolean((int) i++)) {
+                i += 8;
+            }
+            i += 1;
+            final int int2 = buf.getInt((int) i);
+            i += 4;
+            if (int2 < 0) {
+                return null;
+            }
+            i += 8L * int2;
+            if (i >= cmdEnd) {
+                return null;
+            }
+            if (buf.getBoolean((int) i++)) {
+                i += 1;
+            }
+            if (buf.getBoolean((int) i++)) {
+                i += 8;
+            }
+            i += 8;
+            if (i + 2 > cmdEnd) {
+                return null;
+            }
+            i += 2 + buf.getUnsignedShort((int) i);
+            i += 1;
+            if (i + 2 > cmdEnd) {
+                return null;
+            }
+            final byte[] bytes = new byte[len];
+            buf.getBytes(start, bytes);
+            final int at = (int) (i - start);
+            bytes[at] = (byte) (sharedControl >>> 8);
+            bytes[at + 1] = (byte) sharedControl;
+            return bytes;
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 按IP选择语言 未开启多语言或查询失败时为CN
+     * @param ip IP
+     * @return LocaleUtil
+     */
+    private static LocaleUtil getLocaleUtil(String ip) {
+        LocaleUtil localeUtil = Data.localeUtilMap.get("CN");
+        if (Data.game.ipCheckMultiLanguageSupport) {
+            try {
+                IPResult rec = Data.ip2Location.IPQuery(ip);
+                if (!"OK".equals(rec.getStatus())) {
+                    localeUtil = Data.localeUtilMap.get(rec.getCountryShort());
                 }
+            } catch (IOException e) {
+                Log.error("[IP] Query Error", e);
             }
-            o.writeBytes(in.stream.readNBytes(10));
+        }
+        return localeUtil;
+    }
+
+    /**
+     * 完整解码后重新编码 (快速路径失败时使用)
+     * @param p Packet
+     * @param bufAllocator ByteBufAllocator
+     * @param sharedControl 共享控制
+     * @return 命令体
+     * @throws IOException Error
+     */
+    static byte[] reEncodeCommand(Packet p, ByteBufAllocator bufAllocator, short sharedControl) throws IOException {
+        byte[] bytes;
+        GameInputStream in = new GameInputStream(new GameInputStream(p).getDecodeBytes());
+        GameOutputStream o = new GameOutputStream(bufAllocator);
+        o.writeByte(in.readByte());
+        final boolean boolean1 = in.readBoolean();
+        o.writeBoolean(boolean1);
+        if (boolean1) {
+            o.writeInt(in.readInt());
+            final int int1 = in.readInt();
+            o.writeInt(int1);
+            if (int1 == -2) {
+                o.writeString(in.readString());
+            }
+            o.writeBytes(in.stream.readNBytes(28));
             /*
+            o.writeFloat(in.readFloat());
+            o.writeFloat(in.readFloat());
+            o.writeLong(in.readLong());
+            o.writeByte(in.readByte());
+            o.writeFloat(in.readFloat());
+            o.writeFloat(in.readFloat());
             o.writeBoolean(in.readBoolean());
             o.writeBoolean(in.readBoolean());
-            o.writeInt(in.readInt());
-            o.writeInt(in.readInt());
-             */
-            final boolean boolean3 = in.readBoolean();
-            o.writeBoolean(boolean3);
-            if (boolean3) {
-                o.writeBytes(in.stream.readNBytes(8));
-                /*
-                o.writeFloat(in.readFloat());
-                o.writeFloat(in.readFloat());
-                 */
-            }
             o.writeBoolean(in.readBoolean());
-            final int int2 = in.readInt();
-            o.writeInt(int2);
-            for (int i = 0; i < int2; i++) {
-                o.writeBytes(in.stream.readNBytes(8));
-                //o.writeLong(in.readLong());
-            }
-            final boolean boolean4 = in.readBoolean();
-            o.writeBoolean(boolean4);
-            if (boolean4) {
-                o.writeByte(in.readByte());
-            }
-            final boolean boolean5 = in.readBoolean();
-            o.writeBoolean(boolean5);
-            if (boolean5) {
-                o.writeBytes(in.stream.readNBytes(8));
-                /*
-                o.writeFloat(in.readFloat());
-                o.writeFloat(in.readFloat());
-                 */
+            */
+            final boolean boolean2 = in.readBoolean();
+            o.writeBoolean(boolean2);
+            if (boolean2) {
+                o.writeString(in.readString());
             }
+        }
+        o.writeBytes(in.stream.readNBytes(10));
+        /*
+        o.writeBoolean(in.readBoolean());
+        o.writeBoolean(in.readBoolean());
+        o.writeInt(in.readInt());
+        o.writeInt(in.readInt());
+         */
+        final boolean boolean3 = in.readBoolean();
+        o.writeBoolean(boolean3);
+        if (boolean3) {
+            o.writeBytes(in.stream.readNBytes(8));
+            /*
+            o.writeFloat(in.readFloat());
+            o.writeFloat(in.readFloat());
+             */
+        }
+        o.writeBoolean(in.readBoolean());
+        final int int2 = in.readInt();
+        o.writeInt(int2);
+        for (int i = 0; i < int2; i++) {
             o.writeBytes(in.stream.readNBytes(8));
             //o.writeLong(in.readLong());
-            o.writeString(in.readString());
-            o.writeBoolean(in.readBoolean());
-            in.readShort();
-            o.writeShort((short) Data.game.sharedControlPlayer);
-            o.flushData(in);
-            ByteBuf buf = o.createPacket();
-            bytes = new byte[buf.readableBytes()];
-            buf.duplicate().readBytes(bytes);
-            ReferenceCountUtil.release(buf);
-        //} else {
-        //    bytes = inData.getDecodeBytes();
-        //}
-
-        GameCommand cmd = new GameCommand(player.site, bytes);
-        Data.game.gameCommandCache.offer(cmd);
-        } catch (Exception e) {
-            Log.error(e);
-        } finally {
-            sync.unlock();
         }
+        final boolean boolean4 = in.readBoolean();
+        o.writeBoolean(boolean4);
+        if (boolean4) {
+            o.writeByte(in.readByte());
+        }
+        final boolean boolean5 = in.readBoolean();
+        o.writeBoolean(boolean5);
+        if (boolean5) {
+            o.writeBytes(in.stream.readNBytes(8));
+            /*
+            o.writeFloat(in.readFloat());
+            o.writeFloat(in.readFloat());
+             */
+        }
+        o.writeBytes(in.stream.readNBytes(8));
+        //o.writeLong(in.readLong());
+        o.writeString(in.readString());
+        o.writeBoolean(in.readBoolean());
+        in.readShort();
+        o.writeShort(sharedControl);
+        o.flushData(in);
+        ByteBuf buf = o.createPacket();
+        bytes = new byte[buf.readableBytes()];
+        buf.duplicate().readBytes(bytes);
+        ReferenceCountUtil.release(buf);
+        return bytes;
     }
 
     @Override
@@ -329,41 +429,9 @@ public class GameVersionServer extends GameVersion {
     }
 
     @Override
-    public void sendTeamData(GzipEncoder gzip) {
+    public void sendTeamData(ByteBuf teamData) {
         try {
-            GameOutputStream o = new GameOutputStream(bufAllocator);
-            /* 玩家位置 */
-            o.writeInt(player.site);
-            o.writeBoolean(Data.game.isStartGame);
-
-            /* 最大玩家 */
-            o.writeInt(Data.game.maxPlayer);
-            o.flushEncodeData(gzip);
-            /* 迷雾 */
-            o.writeInt(Data.game.mist);
-            o.writeInt(Data.game.credits);
-            o.writeBoolean(true);
-            /* AI Difficulty ?*/
-            o.writeInt(1);
-
-            o.writeByte(5);
-
-            o.writeInt(Data.game.maxUnit);
-            o.writeInt(Data.game.maxUnit);
-            /* 初始单位 */
-            o.writeInt(Data.game.initUnit);
-            /* 倍速 */
-            o.writeFloat(Data.game.income);
-            /* NO Nukes */
-            o.writeBoolean(Data.game.noNukes);
-            o.writeBoolean(false);
-            o.writeBoolean(false);
-            /* 共享控制 */
-            o.writeBoolean(Data.game.sharedControl);
-            /* 游戏暂停 */
-            o.writeBoolean(false);
-
-            sendPacket(o.createPacket(PacketType.PACKET_TEAM_LIST));
+            sendPacket(Data.game.connectPacket.getTeamListByteBuf(player.site, teamData));
         } catch (IOException e) {
             Log.error("Team",e);
         }
@@ -409,12 +477,20 @@ public class GameVersionServer extends GameVersion {
                 ip = "127.0.0.1";
             }
 
+            if (Data.game.replayPlayback != null) {
+                /* 回放模式 只作为观众 不加入玩家列表 */
+                player = new Player(this, ip, uuid, name, getLocaleUtil(ip));
+                Data.game.replayPlayback.join(player);
+                return true;
+            }
+
             AtomicBoolean re = new AtomicBoolean(false);
             if (Data.game.isStartGame) {
                 Data.playerAll.each(i -> i.uuid.equals(uuid), e -> {
                     re.set(true);
                     this.player = e;
                     player.con = this;
+                    player.teamDataVersion = -1;
                     Data.playerGroup.add(e);
                 });
                 if (!re.get()) {
@@ -434,14 +510,7 @@ public class GameVersionServer extends GameVersion {
                     }
                     return false;
                 }
-                LocaleUtil localeUtil = Data.localeUtilMap.get("CN");
-                if (Data.game.ipCheckMultiLanguageSupport) {
-                    IPResult rec = Data.ip2Location.IPQuery(ip);
-                    if (!"OK".equals(rec.getStatus())) {
-                        localeUtil = Data.localeUtilMap.get(rec.getCountryShort());
-                    }
-                }
-                player = Player.addPlayer(this, ip, uuid, name, localeUtil);
+                player = Player.addPlayer(this, ip, uuid, name, getLocaleUtil(ip));
             }
 
             protocol.add(Static.groupNet);
@@ -477,7 +546,7 @@ public class GameVersionServer extends GameVersion {
         stream.readInt();
         stream.readInt();
         GameOutputStream o = new GameOutputStream(bufAllocator);
-        o.writeString(Data.SERVER_ID);
+        o.writeString(SERVER_ID);
         o.writeInt(1);
         o.writeInt(Data.game.version);
         o.writeInt(Data.game.version);
@@ -509,6 +578,16 @@ public class GameVersionServer extends GameVersion {
         }
         this.isDis = true;
 
+        if (player != null && player.replayFeed != null) {
+            player.replayFeed.stop();
+            try {
+                protocol.close(Static.groupNet);
+            } catch (Exception e) {
+                Log.error("Close Connect",e);
+            }
+            return;
+        }
+
         Data.playerGroup.remove(player);
 
         if (IsUtil.notIsBlank(player)) {
@@ -564,46 +643,25 @@ public class GameVersionServer extends GameVersion {
                 return;
             }
             sendPacket(Data.game.connectPacket.getStartGameByteBuf());
-            Data.game.reConnectBreak = true;
-            Call.sendSystemMessage("玩家短线重连中 请耐心等待 不要退出 期间会短暂卡住！！ 需要30s-60s");
-            final ExecutorService executorService= Executors.newFixedThreadPool(1);
-            Future<String> future = executorService.submit(() -> {
-                if (Data.game.gameSaveCache != null && Data.game.gameSaveCache.type == 0) {
-                    while (Data.game.gameSaveCache == null || Data.game.gameSaveCache.type == 0) {
-                        if (Thread.interrupted()) {
-                            return null;
-                        }
-                    }
-                    Static.groupNet.broadcast(Data.game.connectPacket.convertGameSaveDataByteBuf(Data.game.gameSaveCache));
-                    return null;
+            final GameSaveService gameSave = Data.game.gameSave;
+            if (gameSave.getRecent() == null) {
+                Call.sendSystemMessage("玩家短线重连中 请耐心等待 不要退出 期间会短暂卡住！！ 需要30s-60s");
+            }
+            /* 回调在恢复Tick之前执行 同时重连的玩家共用一份快照 */
+            gameSave.request(player).whenComplete((packet, error) -> {
+                if (error != null) {
+                    Log.error("[Player] ReConnect GameSave Error", error);
+                    close(Static.groupNet);
+                    return;
                 }
-                Data.game.gameSaveCache = new Packet(0,null);
-                Data.playerGroup.each(e -> (!e.uuid.equals(this.player.uuid)) && (!e.con.getTryBoolean()),p -> {
-                    p.con.getGameSave();
-                    while (Data.game.gameSaveCache == null || Data.game.gameSaveCache.type == 0) {
-                        if (Thread.interrupted()) {
-                            return;
-                        }
-                    }
-                    try {
-                        Static.groupNet.broadcast(Data.game.connectPacket.convertGameSaveDataByteBuf(Data.game.gameSaveCache));
-                    } catch (IOException e) {
-                        Log.error(e);
-                    }
-                });
-                return null;
+                try {
+                    Static.groupNet.broadcast(Data.game.connectPacket.convertGameSaveDataByteBuf(packet));
+                } catch (IOException e) {
+                    Log.error("[Player] Send GameSave ReConnect Error", e);
+                }
+                /* 从日志恢复的对局 重放并继续Tick */
+                Data.game.journal.resume();
             });
-            try {
-                future.get(30, TimeUnit.SECONDS);
-            } catch (Exception e) {
-                future.cancel(true);
-                Log.error(e);
-                protocol.close(Static.groupNet);
-            } finally {
-                executorService.shutdown();
-                Data.game.gameSaveCache = null;
-                Data.game.reConnectBreak = false;
-            }
         } catch (Exception e) {
             Log.error("[Player] Send GameSave ReConnect Error",e);
         }
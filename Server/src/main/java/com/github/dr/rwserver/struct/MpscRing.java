@@ -0,0 +1,130 @@
+package com.github.dr.rwserver.struct;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 有界 多生产者-单消费者 环形队列 (无锁 入队不分配节点)
+ * 每个槽位带序号 生产者 CAS 抢占尾部 消费者独占头部
+ * 队满时 offer 返回 false 并计入 overflow
+ * @author Dr
+ */
+public class MpscRing<T> {
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<T> buffer;
+    private final AtomicLongArray sequence;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong overflow = new AtomicLong();
+    /** 仅消费者写入 */
+    private volatile long head = 0;
+
+    /**
+     * @param capacity 容量 向上取2的幂
+     */
+    public MpscRing(int capacity) {
+        int cap = 1;
+        while (cap < capacity) {
+            cap <<= 1;
+        }
+        this.capacity = cap;
+        this.mask = cap - 1;
+        this.buffer = new AtomicReferenceArray<>(cap);
+        this.sequence = new AtomicLongArray(cap);
+        for (int i = 0; i < cap; i++) {
+            sequence.set(i, i);
+        }
+    }
+
+    /**
+     * 入队 任意线程
+     * @param value 值
+     * @return 队满时 false
+     */
+    public boolean offer(T value) {
+        long pos = tail.get();
+        for (;;) {
+            final int index = (int) (pos & mask);
+            final long diff = sequence.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer.lazySet(index, value);
+                    sequence.lazySet(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                overflow.incrementAndGet();
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * 批量出队到复用的 Seq (先清空) 仅消费者线程
+     * @param out 输出
+     * @return 出队数量
+     */
+    public int drain(Seq<T> out) {
+        out.clear();
+        long pos = head;
+        for (;;) {
+            final int index = (int) (pos & mask);
+            if (sequence.get(index) != pos + 1) {
+                break;
+            }
+            out.add(buffer.get(index));
+            buffer.lazySet(index, null);
+            sequence.lazySet(index, pos + capacity);
+            pos++;
+        }
+        head = pos;
+        return out.size();
+    }
+
+    /**
+     * 丢弃全部 仅消费者线程 (或消费者已停止)
+     */
+    public void clear() {
+        long pos = head;
+        for (;;) {
+            final int index = (int) (pos & mask);
+            if (sequence.get(index) != pos + 1) {
+                break;
+            }
+            buffer.lazySet(index, null);
+            sequence.lazySet(index, pos + capacity);
+            pos++;
+        }
+        head = pos;
+    }
+
+    /**
+     * @return 近似数量
+     */
+    public int size() {
+        return (int) Math.max(0, Math.min(capacity, tail.get() - head));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return 队满被丢弃的数量
+     */
+    public long getOverflow() {
+        return overflow.get();
+    }
+
+    public void resetOverflow() {
+        overflow.set(0);
+    }
+}
@@ -8,6 +8,7 @@ import java.util.regex.Pattern;
 public class IsUtil {
 
 	private final static Pattern PATTERN = Pattern.compile("[0-9]*");
+	private final static Pattern DECIMAL = Pattern.compile("[0-9]{1,4}(\\.[0-9]{1,4})?");
 	
 
     public static boolean isBlank(Object string) {
@@ -28,6 +29,13 @@ public class IsUtil {
 		return !isNumeric(string);
 	}
 
+	/**
+	 * 非负小数 (不含指数/Infinity/NaN)
+	 */
+	public static boolean notIsDecimal(String string) {
+		return !DECIMAL.matcher(string).matches();
+	}
+
 	public static boolean isTwoTimes(int n) {
 		return n > 0 && (n & 1) == 0;
 	}
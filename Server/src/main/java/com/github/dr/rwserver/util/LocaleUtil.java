@@ -20,6 +20,13 @@ public class LocaleUtil {
         this.lg = lg.split("_");
     }
 
+    /**
+     * @return 语言 如 zh_CN
+     */
+    public String getLanguage() {
+        return String.join("_", lg);
+    }
+
     private String language(String o,String t,String input,Object[] params) {
         Locale locale = new Locale(o,t);
         ResourceBundle bundle = ResourceBundle.getBundle("bundles/GA", locale, new UTF8Control());
@@ -1,46 +1,293 @@
 package com.github.dr.rwserver.util.alone;
 
 import com.github.dr.rwserver.core.ex.Threads;
+import com.github.dr.rwserver.struct.IntMap;
+import com.github.dr.rwserver.struct.ObjectMap;
 import com.github.dr.rwserver.struct.Seq;
 import com.github.dr.rwserver.util.Time;
+import io.netty.util.NetUtil;
 
+import java.net.InetAddress;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * IP 黑名单
+ * IPv4 以 int 为键 / IPv6 以两个 long 为键 的哈希表 ; CIDR 使用前缀树
+ * 临时封禁放入时间轮 到期只处理对应槽位 查询耗时与名单大小无关
+ * @author Dr
+ */
 public class BlackList {
-    private final Seq<BlackData> blackList = new Seq<>(false, 16);
+    /** 永久封禁 */
+    public static final long PERMANENT = Long.MAX_VALUE;
+    /** 时间轮 每槽一分钟 */
+    private static final long WHEEL_TICK = 60 * 1000L;
+    private static final int WHEEL_SIZE = 64;
+
+    private final IntMap<BanEntry> ipv4 = new IntMap<>();
+    private final ObjectMap<Ipv6Key, BanEntry> ipv6 = new ObjectMap<>();
+    private final TrieNode cidr4 = new TrieNode();
+    private final TrieNode cidr6 = new TrieNode();
+    @SuppressWarnings("unchecked")
+    private final Seq<BanEntry>[] wheel = new Seq[WHEEL_SIZE];
+    private long wheelTime = Time.millis() / WHEEL_TICK;
+    private int size = 0;
 
     public BlackList() {
-        Threads.newThreadService2(() -> {
-            final long time = Time.millis();
-            blackList.each(e -> (e.time<time), blackList::remove);
-        },0,1, TimeUnit.HOURS);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new Seq<>(false, 4);
+        }
+        Threads.newThreadService2(this::expire,1,1, TimeUnit.MINUTES);
     }
 
+    /**
+     * 临时封禁一小时
+     * @param str IP 或 CIDR
+     */
     public void addBlackList(String str) {
-        blackList.add(new BlackData(str,Time.getTimeFutureMillis(3600 * 1000L)));
+        add(str,Time.getTimeFutureMillis(3600 * 1000L));
     }
 
     public boolean containsBlackList(String str) {
-        final boolean[] result = new boolean[1];
-        blackList.each(e -> {
-            if (e.object.equals(str)) {
-                result[0] = true;
+        final byte[] ip = NetUtil.createByteArrayFromIpAddressString(str);
+        return ip != null && contains(ip);
+    }
+
+    public boolean contains(InetAddress address) {
+        return contains(address.getAddress());
+    }
+
+    /**
+     * 添加封禁
+     * @param str IP 或 CIDR (1.2.3.0/24 , ::1/128)
+     * @param expire 到期时间(ms) {@link #PERMANENT} 为永久
+     * @return 是否为合法地址
+     */
+    public synchronized boolean add(String str, long expire) {
+        final int split = str.indexOf('/');
+        final byte[] ip = NetUtil.createByteArrayFromIpAddressString(split == -1 ? str.trim() : str.substring(0, split).trim());
+        if (ip == null) {
+            return false;
+        }
+        final int maxBits = ip.length * 8;
+        int prefix = maxBits;
+        if (split != -1) {
+            try {
+                prefix = Integer.parseInt(str.substring(split + 1).trim());
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            if (prefix < 0 || prefix > maxBits) {
+                return false;
+            }
+        }
+        final BanEntry entry = new BanEntry(ip, prefix, expire);
+        final BanEntry old;
+        if (prefix == maxBits) {
+            old = (ip.length == 4) ? ipv4.put(ipv4Key(ip), entry) : ipv6.put(new Ipv6Key(ip), entry);
+        } else {
+            final TrieNode node = (ip.length == 4 ? cidr4 : cidr6).getOrCreate(ip, prefix);
+            old = node.ban;
+            node.ban = entry;
+        }
+        if (old == null) {
+            size++;
+        }
+        if (expire != PERMANENT) {
+            wheel[(int) (Math.max(expire / WHEEL_TICK, wheelTime) % WHEEL_SIZE)].add(entry);
+        }
+        return true;
+    }
+
+    /**
+     * 解除封禁 必须与添加时的写法一致 (CIDR 需带前缀)
+     * @param str IP 或 CIDR
+     */
+    public synchronized void remove(String str) {
+        final int split = str.indexOf('/');
+        final byte[] ip = NetUtil.createByteArrayFromIpAddressString(split == -1 ? str.trim() : str.substring(0, split).trim());
+        if (ip == null) {
+            return;
+        }
+        int prefix = ip.length * 8;
+        if (split != -1) {
+            try {
+                prefix = Integer.parseInt(str.substring(split + 1).trim());
+            } catch (NumberFormatException e) {
+                return;
+            }
+        }
+        removeEntry(new BanEntry(ip, prefix, 0), false);
+    }
+
+    public synchronized void clear() {
+        ipv4.clear();
+        ipv6.clear();
+        cidr4.zero = cidr4.one = null;
+        cidr6.zero = cidr6.one = null;
+        for (Seq<BanEntry> slot : wheel) {
+            slot.clear();
+        }
+        size = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean contains(byte[] ip) {
+        final long time = Time.concurrentMillis();
+        BanEntry entry = (ip.length == 4) ? ipv4.get(ipv4Key(ip)) : ipv6.get(new Ipv6Key(ip));
+        if (entry != null && entry.expire > time) {
+            return true;
+        }
+        return (ip.length == 4 ? cidr4 : cidr6).match(ip, time);
+    }
+
+    /**
+     * 推进时间轮 只检查经过的槽位
+     */
+    private synchronized void expire() {
+        final long now = Time.millis();
+        final long target = now / WHEEL_TICK;
+        for (long t = wheelTime, end = Math.min(target, wheelTime + WHEEL_SIZE); t <= end; t++) {
+            final Seq<BanEntry> slot = wheel[(int) (t % WHEEL_SIZE)];
+            for (int i = slot.size() - 1; i >= 0; i--) {
+                final BanEntry entry = slot.get(i);
+                if (entry.expire <= now) {
+                    slot.remove(i);
+                    removeEntry(entry, true);
+                }
+            }
+        }
+        wheelTime = target;
+    }
+
+    /**
+     * @param entry 需删除的封禁
+     * @param identity true 时仅当表内仍为同一实例才删除 (期间可能被重新封禁)
+     */
+    private void removeEntry(BanEntry entry, boolean identity) {
+        final byte[] ip = entry.ip;
+        final BanEntry current;
+        if (entry.prefix == ip.length * 8) {
+            if (ip.length == 4) {
+                current = ipv4.get(ipv4Key(ip));
+                if (current != null && (!identity || current == entry)) {
+                    ipv4.remove(ipv4Key(ip));
+                    size--;
+                }
+            } else {
+                final Ipv6Key key = new Ipv6Key(ip);
+                current = ipv6.get(key);
+                if (current != null && (!identity || current == entry)) {
+                    ipv6.remove(key);
+                    size--;
+                }
+            }
+        } else {
+            final TrieNode node = (ip.length == 4 ? cidr4 : cidr6).get(ip, entry.prefix);
+            if (node != null && node.ban != null && (!identity || node.ban == entry)) {
+                node.ban = null;
+                size--;
+            }
+        }
+    }
+
+    private static int ipv4Key(byte[] ip) {
+        return ((ip[0] & 0xFF) << 24) | ((ip[1] & 0xFF) << 16) | ((ip[2] & 0xFF) << 8) | (ip[3] & 0xFF);
+    }
+
+    private static boolean bit(byte[] ip, int index) {
+        return (ip[index >>> 3] & (0x80 >>> (index & 7))) != 0;
+    }
+
+    private static class BanEntry {
+        private final byte[] ip;
+        private final int prefix;
+        private final long expire;
+
+        private BanEntry(byte[] ip, int prefix, long expire) {
+            this.ip = ip;
+            this.prefix = prefix;
+            this.expire = expire;
+        }
+    }
+
+    private static class TrieNode {
+        private TrieNode zero;
+        private TrieNode one;
+        private BanEntry ban;
+
+        private TrieNode getOrCreate(byte[] ip, int prefix) {
+            TrieNode node = this;
+            for (int i = 0; i < prefix; i++) {
+                if (bit(ip, i)) {
+                    if (node.one == null) {
+                        node.one = new TrieNode();
+                    }
+                    node = node.one;
+                } else {
+                    if (node.zero == null) {
+                        node.zero = new TrieNode();
+                    }
+                    node = node.zero;
+                }
+            }
+            return node;
+        }
+
+        private TrieNode get(byte[] ip, int prefix) {
+            TrieNode node = this;
+            for (int i = 0; i < prefix && node != null; i++) {
+                node = bit(ip, i) ? node.one : node.zero;
             }
-        });
-        return result[0];
+            return node;
+        }
+
+        private boolean match(byte[] ip, long time) {
+            TrieNode node = this;
+            for (int i = 0, bits = ip.length * 8; node != null; i++) {
+                if (node.ban != null && node.ban.expire > time) {
+                    return true;
+                }
+                if (i == bits) {
+                    break;
+                }
+                node = bit(ip, i) ? node.one : node.zero;
+            }
+            return false;
+        }
     }
 
-    private static class BlackData {
-        protected final String object;
-        protected final long time;
-        protected BlackData(String object,long time) {
-            this.object = object;
-            this.time = time;
+    private static class Ipv6Key {
+        private final long high;
+        private final long low;
+
+        private Ipv6Key(byte[] ip) {
+            long h = 0;
+            long l = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (ip[i] & 0xFF);
+                l = (l << 8) | (ip[i + 8] & 0xFF);
+            }
+            this.high = h;
+            this.low = l;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Ipv6Key)) {
+                return false;
+            }
+            return high == ((Ipv6Key) o).high && low == ((Ipv6Key) o).low;
         }
 
         @Override
-        public boolean equals(Object obj) {
-            return object.toString().equals(obj.toString());
+        public int hashCode() {
+            return Long.hashCode(high * 31 + low);
         }
     }
 }
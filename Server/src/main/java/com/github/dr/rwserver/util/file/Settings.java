@@ -1,26 +1,60 @@
 package com.github.dr.rwserver.util.file;
 
+import com.github.dr.rwserver.core.ex.Threads;
 import com.github.dr.rwserver.data.global.Data;
 import com.github.dr.rwserver.io.ReusableByteInStream;
 import com.github.dr.rwserver.struct.ObjectMap;
+import com.github.dr.rwserver.struct.Seq;
 import com.github.dr.rwserver.util.io.DefaultSerializers;
 import com.github.dr.rwserver.util.log.Log;
 import com.github.dr.rwserver.util.zip.gzip.GzipDecoder;
-import com.github.dr.rwserver.util.zip.gzip.GzipEncoder;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
 
 /**
+ * 数据保存在追加日志 (Setting.log) 中
+ * 保存时只追加变化的 Key , 每条记录带 CRC32 尾部不完整或校验失败的记录 (崩溃时未写完) 在读取时丢弃
+ * 日志超过存活数据的两倍后在后台压缩: 写入临时文件后原子替换 任何时候崩溃都不会损坏已有数据
+ * 旧格式 (Setting.bin) 在没有日志时导入
+ * 无法读取的日志 (未知格式/读取出错) 改名保留 (Setting.log.bad-时间) 改名失败时不再保存 避免覆盖未读取的数据
+ * 记录: int 长度 | int CRC32 | UTF Key | byte 类型 | 值
  * @author Dr
  */
 @SuppressWarnings("unchecked")
 public class Settings {
+    private static final int LOG_MAGIC = 0x52575354;
+    private static final int LOG_VERSION = 1;
+    private static final int LOG_HEAD_SIZE = 8;
+    private static final int RECORD_HEAD_SIZE = 8;
+    /** 日志小于该大小时不压缩 */
+    private static final long COMPACT_MIN = 64 * 1024;
+
     private final ObjectMap<String, Object> values = new ObjectMap();
     private final ObjectMap<Class<?>, TypeSerializer<?>> serializers = new ObjectMap();
     private final ReusableByteInStream byteInputStream = new ReusableByteInStream();
     private final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
     private final DataOutputStream dataOutput = new DataOutputStream(byteStream);
 
+    /** 未保存的 Key */
+    private final Seq<String> dirty = new Seq<>();
+    /** 每个 Key 最后一条记录的大小 用于估算压缩后的大小 */
+    private final ObjectMap<String, Integer> recordSize = new ObjectMap<>();
+    private final CRC32 crc = new CRC32();
+    /** 日志中完整记录的长度 追加前截断之后的残缺记录 */
+    private long logLength = 0;
+    private long liveSize = LOG_HEAD_SIZE;
+    private boolean compactQueued = false;
+    /** 日志无法读取且未能移开 不写入 */
+    private boolean readOnly = false;
+
     public Settings() {
         DefaultSerializers.register(this);
     }
@@ -29,12 +63,70 @@ public class Settings {
         loadData();
     }
 
-    public void saveData() {
-        saveValues(FileUtil.File(Data.Plugin_Data_Path).toPath("Setting.bin"));
+    /**
+     * 追加变化的 Key 失败时保留 下次重试
+     */
+    public synchronized void saveData() {
+        if (dirty.isEmpty() || readOnly) {
+            return;
+        }
+        if (logLength == 0) {
+            compact();
+            return;
+        }
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        final ObjectMap<String, Integer> sizes = new ObjectMap<>();
+        try {
+            for (String key : dirty) {
+                final byte[] record = encodeRecord(key, values.get(key));
+                sizes.put(key, record.length);
+                buffer.write(record);
+            }
+        } catch (IOException e) {
+            Log.error("Write Data",e);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(getLogFile().toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(logLength);
+            channel.position(logLength);
+            final ByteBuffer data = ByteBuffer.wrap(buffer.toByteArray());
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(false);
+            logLength += buffer.size();
+        } catch (IOException e) {
+            Log.error("Write Data",e);
+            return;
+        }
+        for (ObjectMap.Entry<String, Integer> entry : sizes.entries()) {
+            liveSize += entry.value - recordSize.get(entry.key, 0);
+            recordSize.put(entry.key, entry.value);
+        }
+        dirty.clear();
+        if (logLength > COMPACT_MIN && logLength > liveSize * 2 && !compactQueued) {
+            compactQueued = true;
+            try {
+                Threads.newThreadCore(this::compact);
+            } catch (RejectedExecutionException e) {
+                /* 正在退出 下次启动后再压缩 */
+                compactQueued = false;
+            }
+        }
     }
 
-    public void loadData() {
-        loadValues(FileUtil.File(Data.Plugin_Data_Path).toPath("Setting.bin"));
+    public synchronized void loadData() {
+        final File log = getLogFile();
+        if (log.exists()) {
+            loadLog(log);
+            return;
+        }
+        final FileUtil bin = FileUtil.File(Data.Plugin_Data_Path).toPath("Setting.bin");
+        if (bin.exists()) {
+            loadValues(bin);
+            compact();
+            Log.clog("[Settings] Setting.bin imported");
+        }
     }
 
     public float getFloat(String name, float def) {
@@ -130,7 +222,7 @@ public class Settings {
         putObject(name, value, value.getClass());
     }
     
-    public void putObject(String name, Object value, Class<?> type) {
+    public synchronized void putObject(String name, Object value, Class<?> type) {
          getSerializer(type);
          if (!this.serializers.containsKey(type)) {
              throw new IllegalArgumentException(type + " does not have a serializer registered!");
@@ -145,86 +237,202 @@ public class Settings {
          }
     }
 
-    public void put(String name, Object object) {
+    public synchronized void put(String name, Object object) {
         if (object instanceof Float || object instanceof Integer || object instanceof Boolean || object instanceof Long || object instanceof String || object instanceof byte[]) {
+            final Object old = this.values.get(name);
+            if (object instanceof byte[] && old instanceof byte[] ? Arrays.equals((byte[]) object, (byte[]) old) : object.equals(old)) {
+                return;
+            }
             this.values.put(name, object);
+            if (!dirty.contains(name)) {
+                dirty.add(name);
+            }
         } else {
             throw new IllegalArgumentException("Invalid object stored: " + ((object == null) ? null : object.getClass()) + ". Use putObject() for serialization.");
         }
     }
 
-    private void saveValues(FileUtil fileUtil) {
-        try(DataOutputStream stream = new DataOutputStream(GzipEncoder.getGzipOutputStream(fileUtil.writeByteOutputStream(false)))){
-            stream.writeInt(values.size);
-
-            for(ObjectMap.Entry<String, Object> entry : values.entries()){
-                stream.writeUTF(entry.key);
-                Object value = entry.value;
-                if(value instanceof Boolean){
-                    stream.writeByte(0);
-                    stream.writeBoolean((Boolean)value);
-                }else if(value instanceof Integer){
-                    stream.writeByte(1);
-                    stream.writeInt((Integer)value);
-                }else if(value instanceof Long){
-                    stream.writeByte(2);
-                    stream.writeLong((Long)value);
-                }else if(value instanceof Float){
-                    stream.writeByte(3);
-                    stream.writeFloat((Float)value);
-                }else if(value instanceof String){
-                    stream.writeByte(4);
-                    stream.writeUTF((String)value);
-                }else if(value instanceof byte[]){
-                    stream.writeByte(5);
-                    stream.writeInt(((byte[])value).length);
-                    stream.write((byte[])value);
+    /**
+     * 旧格式 (gzip 快照) 只读
+     */
+    public void loadValues(FileUtil fileUtil) {
+        try (DataInputStream stream = new DataInputStream(GzipDecoder.getGzipInputStream(fileUtil.getInputsStream()))) {
+            int amount = stream.readInt();
+
+            for (int i = 0; i < amount; i++) {
+                String key = stream.readUTF();
+                this.values.put(key, readValue(stream));
+            }
+        } catch (Exception e) {
+            Log.error("Read Data",e);
+        }
+    }
+
+    /**
+     * 把当前全部数据写入新日志 再原子替换旧日志
+     * 失败时保留旧日志与未保存的 Key
+     */
+    private synchronized void compact() {
+        compactQueued = false;
+        if (readOnly) {
+            return;
+        }
+        final File log = getLogFile();
+        final File temp = new File(log.getParentFile(), log.getName() + ".tmp");
+        final ObjectMap<String, Integer> sizes = new ObjectMap<>();
+        long length = LOG_HEAD_SIZE;
+        try {
+            final File parent = log.getParentFile();
+            if (!parent.exists() && !parent.mkdirs()) {
+                throw new IOException("Can't create " + parent.getPath());
+            }
+            try (FileOutputStream out = new FileOutputStream(temp);
+                 DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(out))) {
+                stream.writeInt(LOG_MAGIC);
+                stream.writeInt(LOG_VERSION);
+                for (ObjectMap.Entry<String, Object> entry : values.entries()) {
+                    final byte[] record = encodeRecord(entry.key, entry.value);
+                    sizes.put(entry.key, record.length);
+                    stream.write(record);
+                    length += record.length;
                 }
+                stream.flush();
+                out.getFD().sync();
             }
-            stream.flush();
-        }catch(Exception e){
-            fileUtil.getFile().delete();
+            Files.move(temp.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
             Log.error("Write Data",e);
-            throw new RuntimeException();
+            temp.delete();
+            return;
         }
+        recordSize.clear();
+        recordSize.putAll(sizes);
+        logLength = length;
+        liveSize = length;
+        dirty.clear();
     }
 
-    public void loadValues(FileUtil fileUtil) {
-        try (DataInputStream stream = new DataInputStream(GzipDecoder.getGzipInputStream(fileUtil.getInputsStream()))) {
-            int amount = stream.readInt();
-
-            for (int i = 0; i < amount; i++) {
-                int length; byte[] bytes; String key = stream.readUTF();
-                byte type = stream.readByte();
-                switch (type) {
-                    case 0:
-                        this.values.put(key, stream.readBoolean());
-                        break;
-                    case 1:
-                        this.values.put(key, stream.readInt());
-                        break;
-                    case 2:
-                        this.values.put(key, stream.readLong());
-                        break;
-                    case 3:
-                        this.values.put(key, stream.readFloat());
-                        break;
-                    case 4:
-                        this.values.put(key, stream.readUTF());
-                        break;
-                    case 5:
-                        length = stream.readInt();
-                        bytes = new byte[length];
-                        stream.read(bytes);
-                        this.values.put(key, bytes);
-                        break;
-                    }
+    /**
+     * 按顺序重放日志 后写的覆盖先写的 遇到不完整或校验失败的记录停止
+     */
+    private void loadLog(final File log) {
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+            if (stream.readInt() != LOG_MAGIC || stream.readInt() != LOG_VERSION) {
+                Log.error("[Settings] Unknown format: " + log.getName());
+                stream.close();
+                moveAside(log);
+                return;
+            }
+            long length = LOG_HEAD_SIZE;
+            final long fileLength = log.length();
+            while (length + RECORD_HEAD_SIZE <= fileLength) {
+                final int size = stream.readInt();
+                final int checksum = stream.readInt();
+                if (size <= 0 || length + RECORD_HEAD_SIZE + size > fileLength) {
+                    break;
                 }
-        } catch (Exception e) {
+                final byte[] body = new byte[size];
+                stream.readFully(body);
+                crc.reset();
+                crc.update(body, 0, size);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                final DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                final String key = record.readUTF();
+                values.put(key, readValue(record));
+                length += RECORD_HEAD_SIZE + size;
+                liveSize += RECORD_HEAD_SIZE + size - recordSize.get(key, 0);
+                recordSize.put(key, RECORD_HEAD_SIZE + size);
+            }
+            if (length < fileLength) {
+                Log.error("[Settings] Discard " + (fileLength - length) + " byte(s) of incomplete record");
+            }
+            /* 下次保存时截断残缺部分 */
+            logLength = length;
+        } catch (IOException e) {
             Log.error("Read Data",e);
+            moveAside(log);
         }
     }
 
+    /**
+     * 保留无法读取的日志 下次保存时重新写入已读取的数据
+     */
+    private void moveAside(final File log) {
+        final File bad = new File(log.getParentFile(), log.getName() + ".bad-" + System.currentTimeMillis());
+        try {
+            Files.move(log.toPath(), bad.toPath());
+            Log.error("[Settings] Moved to " + bad.getName());
+            logLength = 0;
+        } catch (IOException e) {
+            Log.error("[Settings] Move Failed, settings will not be saved", e);
+            readOnly = true;
+        }
+    }
+
+    private byte[] encodeRecord(final String key, final Object value) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(32);
+        final DataOutputStream stream = new DataOutputStream(body);
+        stream.writeUTF(key);
+        writeValue(stream, value);
+        final byte[] bytes = body.toByteArray();
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEAD_SIZE + bytes.length);
+        record.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes);
+        return record.array();
+    }
+
+    private static void writeValue(final DataOutput stream, final Object value) throws IOException {
+        if(value instanceof Boolean){
+            stream.writeByte(0);
+            stream.writeBoolean((Boolean)value);
+        }else if(value instanceof Integer){
+            stream.writeByte(1);
+            stream.writeInt((Integer)value);
+        }else if(value instanceof Long){
+            stream.writeByte(2);
+            stream.writeLong((Long)value);
+        }else if(value instanceof Float){
+            stream.writeByte(3);
+            stream.writeFloat((Float)value);
+        }else if(value instanceof String){
+            stream.writeByte(4);
+            stream.writeUTF((String)value);
+        }else if(value instanceof byte[]){
+            stream.writeByte(5);
+            stream.writeInt(((byte[])value).length);
+            stream.write((byte[])value);
+        }
+    }
+
+    private static Object readValue(final DataInput stream) throws IOException {
+        byte type = stream.readByte();
+        switch (type) {
+            case 0:
+                return stream.readBoolean();
+            case 1:
+                return stream.readInt();
+            case 2:
+                return stream.readLong();
+            case 3:
+                return stream.readFloat();
+            case 4:
+                return stream.readUTF();
+            case 5:
+                final byte[] bytes = new byte[stream.readInt()];
+                stream.readFully(bytes);
+                return bytes;
+            default:
+                throw new IOException("Unknown type " + type);
+        }
+    }
+
+    private static File getLogFile() {
+        return FileUtil.File(Data.Plugin_Data_Path).toPath("Setting.log").getFile();
+    }
+
     public interface TypeSerializer<T> {
         void write(DataOutput param1DataOutput, T param1T) throws IOException;
         T read(DataInput param1DataInput) throws IOException;
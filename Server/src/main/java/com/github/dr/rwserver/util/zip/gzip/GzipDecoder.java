@@ -1,9 +1,9 @@
 package com.github.dr.rwserver.util.zip.gzip;
 
 import java.io.*;
-import java.util.zip.*;
 
 /**
+ * GZIP 使用 {@link ZlibPool} 中的 Inflater 读到末尾后归还
  * @author Dr
  */
 public class GzipDecoder {
@@ -13,13 +13,13 @@ public class GzipDecoder {
     public GzipDecoder(boolean bl,byte[] bytes) throws IOException {
     	this.buffer = new ByteArrayInputStream(bytes);
     	if (bl) {
-    		this.stream = new DataInputStream(new BufferedInputStream(new GZIPInputStream(this.buffer)));
+    		this.stream = new DataInputStream(new BufferedInputStream(new PooledGzipInputStream(this.buffer)));
     	} else {
     		this.stream = new DataInputStream(this.buffer);
     	}
     }
 
     public static InputStream getGzipInputStream(InputStream in) throws Exception {
-    	return new BufferedInputStream(new GZIPInputStream(in));
+    	return new BufferedInputStream(new PooledGzipInputStream(in));
 	}
 }
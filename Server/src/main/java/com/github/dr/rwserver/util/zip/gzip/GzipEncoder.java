@@ -3,24 +3,24 @@ package com.github.dr.rwserver.util.zip.gzip;
 import com.github.dr.rwserver.util.log.Log;
 
 import java.io.*;
-import java.util.zip.GZIPOutputStream;
 
 import static com.github.dr.rwserver.util.IsUtil.notIsBlank;
 
 /**
+ * GZIP 使用 {@link ZlibPool} 中的 Deflater closeGzip 后归还
  * @author Dr
  */
 public class GzipEncoder {
 	public String str;
     public final ByteArrayOutputStream buffer;
     public DataOutputStream stream;
-    private GZIPOutputStream gzip = null;
+    private PooledGzipOutputStream gzip = null;
 
     public GzipEncoder(boolean bl){
         this.buffer = new ByteArrayOutputStream();
         if (bl) {
             try {
-                this.gzip = new GZIPOutputStream(this.buffer);
+                this.gzip = new PooledGzipOutputStream(this.buffer);
                 this.stream = new DataOutputStream(new BufferedOutputStream(gzip));
             } catch (IOException e) {
                 Log.error("GZIP Error",e);
@@ -32,7 +32,7 @@ public class GzipEncoder {
     }
 
     public static OutputStream getGzipOutputStream(OutputStream out) throws Exception {
-        return new BufferedOutputStream(new GZIPOutputStream(out));
+        return new BufferedOutputStream(new PooledGzipOutputStream(out));
     }
 
     public static GzipEncoder getGzipStream(String key,boolean bl) {
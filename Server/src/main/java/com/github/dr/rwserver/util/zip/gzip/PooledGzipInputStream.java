@@ -0,0 +1,138 @@
+package com.github.dr.rwserver.util.zip.gzip;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * 使用 {@link ZlibPool} 中 Inflater 的 GZIP 输入流 (单成员)
+ * 读到流末尾并校验尾部后即归还 Inflater 不依赖调用者 close
+ * @author Dr
+ */
+public class PooledGzipInputStream extends InflaterInputStream {
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final CRC32 crc = new CRC32();
+    private boolean eos = false;
+    private boolean released = false;
+
+    public PooledGzipInputStream(InputStream in) throws IOException {
+        super(in, ZlibPool.borrowInflater(), 512);
+        try {
+            readHeader(in);
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (eos) {
+            return -1;
+        }
+        final int n = super.read(b, off, len);
+        if (n == -1) {
+            try {
+                readTrailer();
+            } finally {
+                eos = true;
+                release();
+            }
+        } else {
+            crc.update(b, off, n);
+        }
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            eos = true;
+            release();
+        }
+    }
+
+    private void readHeader(InputStream in) throws IOException {
+        final CRC32 headCrc = new CRC32();
+        if (readUShort(in, headCrc) != 0x8b1f) {
+            throw new ZipException("Not in GZIP format");
+        }
+        if (readUByte(in, headCrc) != 8) {
+            throw new ZipException("Unsupported compression method");
+        }
+        final int flg = readUByte(in, headCrc);
+        /* MTIME XFL OS */
+        for (int i = 0; i < 6; i++) {
+            readUByte(in, headCrc);
+        }
+        if ((flg & FEXTRA) == FEXTRA) {
+            for (int i = readUShort(in, headCrc); i > 0; i--) {
+                readUByte(in, headCrc);
+            }
+        }
+        if ((flg & FNAME) == FNAME) {
+            while (readUByte(in, headCrc) != 0) {
+            }
+        }
+        if ((flg & FCOMMENT) == FCOMMENT) {
+            while (readUByte(in, headCrc) != 0) {
+            }
+        }
+        if ((flg & FHCRC) == FHCRC) {
+            final int v = (int) headCrc.getValue() & 0xffff;
+            if (readUShort(in, null) != v) {
+                throw new ZipException("Corrupt GZIP header");
+            }
+        }
+    }
+
+    private void readTrailer() throws IOException {
+        InputStream in = this.in;
+        final int n = inf.getRemaining();
+        if (n > 0) {
+            in = new SequenceInputStream(new ByteArrayInputStream(buf, len - n, n), in);
+        }
+        if (readUInt(in) != crc.getValue() || readUInt(in) != (inf.getBytesWritten() & 0xffffffffL)) {
+            throw new ZipException("Corrupt GZIP trailer");
+        }
+    }
+
+    private static long readUInt(InputStream in) throws IOException {
+        final long s = readUShort(in, null);
+        return ((long) readUShort(in, null) << 16) | s;
+    }
+
+    private static int readUShort(InputStream in, CRC32 headCrc) throws IOException {
+        final int b = readUByte(in, headCrc);
+        return (readUByte(in, headCrc) << 8) | b;
+    }
+
+    private static int readUByte(InputStream in, CRC32 headCrc) throws IOException {
+        final int b = in.read();
+        if (b == -1) {
+            throw new EOFException();
+        }
+        if (headCrc != null) {
+            headCrc.update(b);
+        }
+        return b;
+    }
+
+    private void release() {
+        if (!released) {
+            released = true;
+            ZlibPool.release(inf);
+        }
+    }
+}
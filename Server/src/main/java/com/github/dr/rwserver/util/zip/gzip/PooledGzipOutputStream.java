@@ -0,0 +1,84 @@
+package com.github.dr.rwserver.util.zip.gzip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 使用 {@link ZlibPool} 中 Deflater 的 GZIP 输出流
+ * 头/尾与 GZIPOutputStream 相同 (同一压缩等级下输出逐字节一致)
+ * close 后 Deflater 归还到池 之后不可再写入
+ * @author Dr
+ */
+public class PooledGzipOutputStream extends DeflaterOutputStream {
+    /** 取当前 JDK GZIPOutputStream 的头 (OS 字节随 JDK 版本不同) */
+    private static final byte[] HEADER = header();
+    private final CRC32 crc = new CRC32();
+    private boolean released = false;
+
+    public PooledGzipOutputStream(OutputStream out) throws IOException {
+        super(out, ZlibPool.borrowDeflater(), 512);
+        try {
+            out.write(HEADER);
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        crc.update(b, off, len);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (!def.finished()) {
+            def.finish();
+            while (!def.finished()) {
+                deflate();
+            }
+            writeInt((int) crc.getValue());
+            writeInt(def.getTotalIn());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            release();
+        }
+    }
+
+    private static byte[] header() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.flush();
+        } catch (IOException e) {
+            return new byte[] {(byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+        }
+        return Arrays.copyOf(out.toByteArray(), 10);
+    }
+
+    private void writeInt(int i) throws IOException {
+        out.write(i & 0xff);
+        out.write((i >> 8) & 0xff);
+        out.write((i >> 16) & 0xff);
+        out.write((i >> 24) & 0xff);
+    }
+
+    private void release() {
+        if (!released) {
+            released = true;
+            ZlibPool.release(def);
+        }
+    }
+}
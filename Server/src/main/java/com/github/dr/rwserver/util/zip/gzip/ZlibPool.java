@@ -0,0 +1,89 @@
+package com.github.dr.rwserver.util.zip.gzip;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflater / Inflater 有界池 (nowrap 由 Pooled Gzip 流自行写 GZIP 头尾)
+ * 每个 Deflater/Inflater 持有一份原生 zlib 上下文 反复创建会造成堆外内存增长
+ * 池满时归还的对象直接 end() 释放
+ * @author Dr
+ */
+public final class ZlibPool {
+    private static final ConcurrentLinkedQueue<Deflater> DEFLATER = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Inflater> INFLATER = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger DEFLATER_SIZE = new AtomicInteger();
+    private static final AtomicInteger INFLATER_SIZE = new AtomicInteger();
+    private static final AtomicLong CREATED = new AtomicLong();
+    private static final AtomicLong REUSED = new AtomicLong();
+
+    private static volatile int level = Deflater.DEFAULT_COMPRESSION;
+    private static volatile int maxSize = 16;
+
+    private ZlibPool() {
+    }
+
+    /**
+     * 读取配置后调用 之前使用默认值 (压缩等级 -1 / 池大小 16)
+     * @param compressionLevel 压缩等级 -1 默认 0-9
+     * @param poolSize 每种对象的池大小
+     */
+    public static void configure(int compressionLevel, int poolSize) {
+        if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+            compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        }
+        level = compressionLevel;
+        maxSize = Math.max(0, poolSize);
+    }
+
+    public static Deflater borrowDeflater() {
+        final Deflater deflater = DEFLATER.poll();
+        if (deflater == null) {
+            CREATED.incrementAndGet();
+            return new Deflater(level, true);
+        }
+        DEFLATER_SIZE.decrementAndGet();
+        REUSED.incrementAndGet();
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    public static void release(Deflater deflater) {
+        deflater.reset();
+        if (DEFLATER_SIZE.incrementAndGet() > maxSize) {
+            DEFLATER_SIZE.decrementAndGet();
+            deflater.end();
+            return;
+        }
+        DEFLATER.offer(deflater);
+    }
+
+    public static Inflater borrowInflater() {
+        final Inflater inflater = INFLATER.poll();
+        if (inflater == null) {
+            CREATED.incrementAndGet();
+            return new Inflater(true);
+        }
+        INFLATER_SIZE.decrementAndGet();
+        REUSED.incrementAndGet();
+        return inflater;
+    }
+
+    public static void release(Inflater inflater) {
+        inflater.reset();
+        if (INFLATER_SIZE.incrementAndGet() > maxSize) {
+            INFLATER_SIZE.decrementAndGet();
+            inflater.end();
+            return;
+        }
+        INFLATER.offer(inflater);
+    }
+
+    public static String getStats() {
+        return "Zlib: Level: " + level + " / Pool: " + DEFLATER_SIZE.get() + "D " + INFLATER_SIZE.get() + "I / " + maxSize +
+                " / Created: " + CREATED.get() + " / Reused: " + REUSED.get();
+    }
+}
@@ -4,24 +4,38 @@ import com.github.dr.rwserver.game.GameMaps;
 import com.github.dr.rwserver.struct.OrderedMap;
 import com.github.dr.rwserver.struct.Seq;
 import com.github.dr.rwserver.util.log.Log;
+import com.github.dr.rwserver.util.zip.gzip.PooledGzipInputStream;
+import com.github.dr.rwserver.util.zip.gzip.ZlibPool;
 import com.github.dr.rwserver.util.zip.zip.realization.ZipEntry;
 import com.github.dr.rwserver.util.zip.zip.realization.ZipFile;
+import io.netty.util.internal.PlatformDependent;
+
 
 import java.io.*;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.Enumeration;
-import java.util.zip.GZIPInputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 
 
 /**
  * 解码
+ * 按中央目录定位条目 只映射 (mmap) 条目本身的数据 不再顺序读完整个压缩包
+ * STORED 的条目直接返回映射 不复制 , DEFLATED 的条目按中央目录中的原大小预分配后一次解压
  * @author Dr
  */
-public class ZipDecoder {
+public class ZipDecoder implements Closeable {
+    /** nowrap 的 Inflater 在输入结束后可能还需要一个字节 */
+    private static final byte[] DUMMY = new byte[1];
+
     private ZipFile zipFile;
     private File file;
+    private FileChannel channel = null;
 
     public ByteArrayInputStream buffer;
     public DataInputStream stream;
@@ -33,6 +47,7 @@ public class ZipDecoder {
 
     public ZipDecoder(ZipFile zipFile) {
         this.zipFile = zipFile;
+        this.file = new File(zipFile.getName());
     }
 
     public ZipDecoder(byte[] bytes) {
@@ -42,7 +57,7 @@ public class ZipDecoder {
     public ZipDecoder(boolean bl,byte[] bytes) throws IOException {
         this.buffer = new ByteArrayInputStream(bytes);
         if (bl) {
-            this.stream = new DataInputStream(new BufferedInputStream(new GZIPInputStream(this.buffer)));
+            this.stream = new DataInputStream(new BufferedInputStream(new PooledGzipInputStream(this.buffer)));
         } else {
             this.stream = new DataInputStream(this.buffer);
         }
@@ -50,24 +65,12 @@ public class ZipDecoder {
 
     public OrderedMap<String, byte[]> getSpecifiedSuffixInThePackage(String endWith) {
         final OrderedMap<String,byte[]> data = new OrderedMap<>(8);
-        try(ZipInputStream zis = new ZipInputStream(new FileInputStream(file), Charset.forName("GBK"))) {
-            ZipEntry zipEntry;
-            int len;
-            InputStream in;
-            final byte[] buffer = new byte[1024];
-            try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
-                for(Enumeration entries = zipFile.getEntries();entries.hasMoreElements();){
-                    zipEntry = (ZipEntry)entries.nextElement();
-                    in  =  zipFile.getInputStream(zipEntry);
-                    while ((len = in.read(buffer)) != -1) {
-                        byteArrayOutputStream.write(buffer, 0, len);
-                    }
-                    final String name = zipEntry.getName();
-                    if (name.endsWith(endWith)) {
-                        data.put(name.substring(0, name.length()-name.substring(name.lastIndexOf(".")).length()),byteArrayOutputStream.toByteArray());
-                        //FileUtil.File(Data.Plugin_Cache_Path).toPath(name).writeFileByte(byteArrayOutputStream.toByteArray(),false);
-                    }
-                    byteArrayOutputStream.reset();
+        try {
+            for(Enumeration<ZipEntry> entries = zipFile.getEntries();entries.hasMoreElements();){
+                final ZipEntry zipEntry = entries.nextElement();
+                final String name = zipEntry.getName();
+                if (name.endsWith(endWith)) {
+                    data.put(name.substring(0, name.length()-name.substring(name.lastIndexOf(".")).length()),getEntryBytes(zipEntry));
                 }
             }
         } catch (IOException e) {
@@ -95,23 +98,10 @@ public class ZipDecoder {
     }
 
     public byte[] GetTheFileBytesOfTheSpecifiedSuffixInTheZip(final GameMaps.MapData mapData) {
-        try(ZipInputStream zis = new ZipInputStream(new FileInputStream(file), Charset.forName("GBK"))) {
-            ZipEntry zipEntry;
-            int len;
-            InputStream in;
-            final byte[] buffer = new byte[1024];
-            try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
-                for(Enumeration entries = zipFile.getEntries();entries.hasMoreElements();){
-                    zipEntry = (ZipEntry)entries.nextElement();
-                    final String name = zipEntry.getName();
-                    if (name.endsWith(mapData.getType()) && name.contains(mapData.mapFileName)) {
-                        in  =  zipFile.getInputStream(zipEntry);
-                        while ((len = in.read(buffer)) != -1) {
-                            byteArrayOutputStream.write(buffer, 0, len);
-                        }
-                        return byteArrayOutputStream.toByteArray();
-                    }
-                }
+        try {
+            final ZipEntry zipEntry = findMap(mapData);
+            if (zipEntry != null) {
+                return getEntryBytes(zipEntry);
             }
         } catch (IOException e) {
             Log.error(e);
@@ -119,6 +109,63 @@ public class ZipDecoder {
         return null;
     }
 
+    /**
+     * 读取地图 (解压到堆外)
+     * @param mapData 地图
+     * @return 只读使用 没有该地图为 null
+     * @throws IOException 读取失败
+     */
+    public ByteBuffer getMapBuffer(final GameMaps.MapData mapData) throws IOException {
+        final ZipEntry zipEntry = findMap(mapData);
+        return zipEntry == null ? null : getEntryBuffer(zipEntry, true);
+    }
+
+    /**
+     * 读取条目
+     * @param zipEntry 本压缩包的条目
+     * @param direct 解压到堆外
+     * @return position 0 / limit 为条目大小 STORED 为只读的映射
+     * @throws IOException 读取失败或不支持的压缩方式
+     */
+    public ByteBuffer getEntryBuffer(final ZipEntry zipEntry, final boolean direct) throws IOException {
+        final long offset = zipFile.getDataOffset(zipEntry);
+        if (offset < 0) {
+            throw new ZipException("Not an entry of " + zipFile.getName() + ": " + zipEntry.getName());
+        }
+        if (!zipFile.canReadEntryData(zipEntry)) {
+            throw new ZipException("Unsupported feature in entry " + zipEntry.getName());
+        }
+        final ByteBuffer mapped = getChannel().map(FileChannel.MapMode.READ_ONLY, offset, zipEntry.getCompressedSize());
+        switch (zipEntry.getMethod()) {
+            case ZipEntry.STORED:
+                return mapped;
+            case ZipEntry.DEFLATED:
+                try {
+                    return inflate(zipEntry, mapped, direct);
+                } finally {
+                    /* 压缩数据只用一次 立即 unmap */
+                    PlatformDependent.freeDirectBuffer(mapped);
+                }
+            default:
+                throw new ZipException("Found unsupported compression method " + zipEntry.getMethod());
+        }
+    }
+
+    /**
+     * @param zipEntry 本压缩包的条目
+     * @return 条目数据
+     * @throws IOException 读取失败
+     */
+    public byte[] getEntryBytes(final ZipEntry zipEntry) throws IOException {
+        final ByteBuffer data = getEntryBuffer(zipEntry, false);
+        if (data.hasArray() && data.arrayOffset() == 0 && data.array().length == data.remaining()) {
+            return data.array();
+        }
+        final byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
     public InputStreamReader getZipNameInputStream(String name) {
         try {
             Enumeration<ZipEntry> entries = zipFile.getEntries();
@@ -143,4 +190,70 @@ public class ZipDecoder {
     public static InputStream getZipInputStream(InputStream in) throws Exception {
         return new BufferedInputStream(new ZipInputStream(in));
     }
+
+    /**
+     * 关闭后已返回的映射仍然有效
+     * @throws IOException Error
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        if (zipFile != null) {
+            zipFile.close();
+        }
+    }
+
+    private ZipEntry findMap(final GameMaps.MapData mapData) {
+        for(Enumeration<ZipEntry> entries = zipFile.getEntries();entries.hasMoreElements();){
+            final ZipEntry zipEntry = entries.nextElement();
+            final String name = zipEntry.getName();
+            if (name.endsWith(mapData.getType()) && name.contains(mapData.mapFileName)) {
+                return zipEntry;
+            }
+        }
+        return null;
+    }
+
+    private FileChannel getChannel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        return channel;
+    }
+
+    private static ByteBuffer inflate(final ZipEntry zipEntry, final ByteBuffer input, final boolean direct) throws IOException {
+        final long size = zipEntry.getSize();
+        if (size < 0 || size > Integer.MAX_VALUE) {
+            throw new ZipException("Bad size " + size + " of entry " + zipEntry.getName());
+        }
+        final ByteBuffer output = direct ? ByteBuffer.allocateDirect((int) size) : ByteBuffer.allocate((int) size);
+        final Inflater inflater = ZlibPool.borrowInflater();
+        try {
+            inflater.setInput(input);
+            boolean dummy = false;
+            while (output.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(output) > 0) {
+                    continue;
+                }
+                if (inflater.needsInput() && !dummy) {
+                    inflater.setInput(DUMMY);
+                    dummy = true;
+                } else {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Bad entry " + zipEntry.getName() + ": " + e.getMessage());
+        } finally {
+            ZlibPool.release(inflater);
+        }
+        if (output.hasRemaining()) {
+            throw new ZipException("Truncated entry " + zipEntry.getName());
+        }
+        output.flip();
+        return output;
+    }
 }
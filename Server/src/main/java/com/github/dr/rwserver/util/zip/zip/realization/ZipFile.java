@@ -366,6 +366,20 @@ public class ZipFile implements Closeable {
         return archiveName;
     }
 
+    /**
+     * Returns the offset of the entry's data (after the local file
+     * header) within the archive.
+     *
+     * @param ze the entry, must belong to this archive.
+     * @return the offset or -1 if the entry is not part of this archive.
+     */
+    public long getDataOffset(final ZipEntry ze) {
+        if (!(ze instanceof Entry)) {
+            return -1;
+        }
+        return ((Entry) ze).getOffsetEntry().dataOffset;
+    }
+
     /**
      * Length of a "central directory" entry structure without file
      * name, extra fields or comment.